@@ -0,0 +1,197 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * AsyncWriter hands the characters written to it to a writer thread in fixed-size
+ * chunks through a bounded queue, so the character encoding, compression, and disk
+ * writes of the target Writer overlap with the XML generation of the calling thread.
+ * The calling thread blocks when the queue is full. flush only hands the buffered
+ * characters to the writer thread; close waits until all characters are written and
+ * closes the target. An error of the writer thread is thrown by the next write,
+ * flush, or close.
+ * @author Sam Hume swhume@gmail.com
+ */
+class AsyncWriter extends Writer {
+    private static final Chunk END = new Chunk(0);
+    private final Writer target;
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<Chunk> free;
+    private final Thread thread;
+    private volatile IOException error;
+    private Chunk current;
+    private boolean closed = false;
+
+    /**
+     * AsyncWriter constructor starts the writer thread
+     * @param target the Writer the characters are written to by the writer thread
+     * @param chunkSize the number of characters handed to the writer thread at a time
+     * @param queueSize the number of chunks that may wait for the writer thread
+     */
+    public AsyncWriter(Writer target, int chunkSize, int queueSize) {
+        this.target = target;
+        this.filled = new ArrayBlockingQueue<>(queueSize + 1);
+        this.free = new ArrayBlockingQueue<>(queueSize + 1);
+        for (int i = 0; i < queueSize; i++) {
+            this.free.add(new Chunk(chunkSize));
+        }
+        this.current = new Chunk(chunkSize);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "ct2odm-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, this.current.buf.length - this.current.len);
+            System.arraycopy(cbuf, off, this.current.buf, this.current.len, n);
+            this.current.len += n;
+            off += n;
+            len -= n;
+            if (this.current.len == this.current.buf.length) {
+                handOff();
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, this.current.buf.length - this.current.len);
+            str.getChars(off, off + n, this.current.buf, this.current.len);
+            this.current.len += n;
+            off += n;
+            len -= n;
+            if (this.current.len == this.current.buf.length) {
+                handOff();
+            }
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        write(new char[] {(char) c}, 0, 1);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (this.current.len > 0) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            if (this.error == null && this.current.len > 0) {
+                handOff();
+            }
+        } finally {
+            this.closed = true;
+            try {
+                this.filled.put(END);
+                this.thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the output file");
+            }
+        }
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    /* hands the current chunk to the writer thread and takes a free chunk to fill next */
+    private void handOff() throws IOException {
+        try {
+            this.filled.put(this.current);
+            this.current = this.free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the output file");
+        }
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    /* throws the writer thread error or if the writer is closed */
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("The output writer is closed");
+        }
+        if (this.error != null) {
+            throw this.error;
+        }
+    }
+
+    /* writer thread: writes each filled chunk to the target until the end marker, then closes the target */
+    private void drain() {
+        try {
+            Chunk chunk;
+            while ((chunk = this.filled.take()) != END) {
+                if (this.error == null) {
+                    try {
+                        this.target.write(chunk.buf, 0, chunk.len);
+                    } catch (IOException ex) {
+                        this.error = ex;
+                    }
+                }
+                // chunks are still returned after an error so the calling thread never blocks
+                chunk.len = 0;
+                this.free.put(chunk);
+            }
+        } catch (InterruptedException ex) {
+            this.error = new InterruptedIOException("Interrupted while writing the output file");
+        } finally {
+            try {
+                this.target.close();
+            } catch (IOException ex) {
+                if (this.error == null) {
+                    this.error = ex;
+                }
+            }
+        }
+    }
+
+    /* a block of characters handed to the writer thread */
+    private static final class Chunk {
+        private final char[] buf;
+        private int len = 0;
+
+        private Chunk(int size) {
+            this.buf = new char[size];
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * BatchConverter converts many CT packages concurrently within one JVM. Packages are
+ * listed in a tab delimited manifest or found in a directory using a file name pattern
+ * that provides the standard and package date of each text file.
+ * @author Sam Hume swhume@gmail.com
+ */
+class BatchConverter {
+    /** default file name pattern for the NCI EVS text files (e.g. SDTM Terminology 2015-12-18.txt) */
+    static final String NCI_FILE_NAME_PATTERN = "(?i)(?<std>.+?)[ _-]+(?:Terminology[ _-]+)?(?<date>\\d{4}-\\d{2}-\\d{2})\\.txt";
+    private final int threads;
+    private long elapsedNanos;
+
+    /**
+     * BatchConverter constructor takes the number of packages to convert concurrently
+     * @param threads number of worker threads
+     */
+    public BatchConverter(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Reads a tab delimited manifest with one package per line: text file, ODM file,
+     * standard, package date, and optionally the CT-XML version. Blank lines and lines
+     * starting with # are ignored.
+     * @param manifest path and file name of the manifest
+     * @param options the command line options each conversion uses, including the default
+     * CT-XML version for lines that do not provide one
+     * @return the list of configured conversions
+     * @throws IOException if the manifest cannot be read or a line is incomplete
+     */
+    public List<CT2ODM> readManifest(String manifest, CT2ODM options) throws IOException {
+        List<CT2ODM> jobs = new ArrayList<>();
+        try (BufferedReader f = Files.newBufferedReader(Paths.get(manifest), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = f.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] cols = line.split("\t");
+                if (cols.length < 4) {
+                    throw new IOException("Invalid batch manifest line " + lineNumber + ", expected txt, odm, std, and date columns: " + line);
+                }
+                String ver = cols.length > 4 && !cols[4].isEmpty() ? cols[4] : null;
+                jobs.add(options.newJob(cols[0], cols[1], cols[2], cols[3], ver));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Finds the text files in a directory whose names match the pattern and names each
+     * ODM output file std-odm-date.xml in the output directory
+     * @param dir directory containing the NCI EVS text files
+     * @param outDir directory the ODM files are written to
+     * @param namePattern file name regex with std and date named groups, or null for the NCI default
+     * @param options the command line options each conversion uses
+     * @return the list of configured conversions sorted by file name
+     * @throws IOException if the directory cannot be read
+     */
+    public List<CT2ODM> scanDirectory(String dir, String outDir, String namePattern, CT2ODM options) throws IOException {
+        File[] files = new File(dir).listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list the batch directory: " + dir);
+        }
+        Arrays.sort(files);
+        List<CT2ODM> jobs = new ArrayList<>();
+        for (File txt : files) {
+            CT2ODM job = jobForFile(txt, outDir, namePattern, options);
+            if (job != null) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Creates the conversion for a text file if its name matches the pattern
+     * @param txt the NCI EVS text file
+     * @param outDir directory the ODM file is written to
+     * @param namePattern file name regex with std and date named groups, or null for the NCI default
+     * @param options the command line options the conversion uses
+     * @return the configured conversion, or null if the file name does not match
+     */
+    static CT2ODM jobForFile(File txt, String outDir, String namePattern, CT2ODM options) {
+        Pattern pattern = Pattern.compile(namePattern == null ? NCI_FILE_NAME_PATTERN : namePattern);
+        Matcher m = pattern.matcher(txt.getName());
+        if (!txt.isFile() || !m.matches()) {
+            return null;
+        }
+        String std = m.group("std").trim();
+        String date = m.group("date");
+        String odm = new File(outDir, std.toLowerCase().replace(' ', '-') + "-odm-" + date + ".xml").getPath();
+        return options.newJob(txt.getPath(), odm, std, date, null);
+    }
+
+    /**
+     * Converts each package on the worker pool. A failed package does not stop the others.
+     * @param jobs the configured conversions
+     * @return one result per conversion in the order given
+     */
+    public List<Result> run(List<CT2ODM> jobs) {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(this.threads, jobs.size())));
+        List<Future<Result>> futures = new ArrayList<>();
+        try {
+            for (final CT2ODM job : jobs) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return convert(job);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    results.add(new Result(jobs.get(i), 0, 0, 0, ex.getCause().toString()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    results.add(new Result(jobs.get(i), 0, 0, 0, "Interrupted"));
+                }
+            }
+            this.elapsedNanos = System.nanoTime() - start;
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the result of each conversion followed by the aggregate throughput
+     * @param results the conversion results returned by run
+     */
+    public void report(List<Result> results) {
+        long bytes = 0;
+        long rows = 0;
+        int failed = 0;
+        for (Result r : results) {
+            if (r.isSuccess()) {
+                bytes += r.bytes;
+                rows += r.rows;
+                System.out.println("OK      " + r.txtFileName + " (" + r.rows + " rows, " + r.elapsedNanos / 1000000 + " ms)");
+            } else {
+                failed++;
+                System.out.println("FAILED  " + r.txtFileName + ": " + r.error);
+            }
+        }
+        double seconds = this.elapsedNanos / 1e9;
+        System.out.println(String.format("Converted %d of %d packages in %.2f s: %.1f MB/s, %.0f rows/s",
+                results.size() - failed, results.size(), seconds,
+                seconds > 0 ? bytes / 1048576.0 / seconds : 0.0, seconds > 0 ? rows / seconds : 0.0));
+    }
+
+    /**
+     * Runs a single conversion and captures its outcome
+     * @param job the configured conversion
+     * @return the conversion result; a failure is returned rather than thrown
+     */
+    static Result convert(CT2ODM job) {
+        long start = System.nanoTime();
+        String error = job.checkOptions();
+        if (error == null) {
+            try {
+                job.buildOdmFile();
+            } catch (IOException | RuntimeException ex) {
+                error = ex.getMessage() == null ? ex.toString() : ex.getMessage();
+            } catch (InternalError ex) {
+                // a memory-mapped text file that is truncated while it is read faults as an InternalError
+                error = "The text file changed while it was read: " + ex.getMessage();
+            }
+        }
+        long bytes = job.getTxtFileName() == null ? 0 : new File(job.getTxtFileName()).length();
+        return new Result(job, bytes, job.getRowCount(), System.nanoTime() - start, error);
+    }
+
+    /**
+     * Result holds the outcome of converting one package
+     */
+    static final class Result {
+        private final String txtFileName;
+        private final long bytes;
+        private final long rows;
+        private final long elapsedNanos;
+        private final String error;
+
+        Result(CT2ODM job, long bytes, long rows, long elapsedNanos, String error) {
+            this.txtFileName = job.getTxtFileName();
+            this.bytes = bytes;
+            this.rows = rows;
+            this.elapsedNanos = elapsedNanos;
+            this.error = error;
+        }
+
+        /**
+         * Tests if the package was converted
+         * @return true if the conversion succeeded
+         */
+        public boolean isSuccess() {
+            return this.error == null;
+        }
+
+        /**
+         * Returns the failure message
+         * @return the error message, or null if the conversion succeeded
+         */
+        public String getError() {
+            return this.error;
+        }
+
+        /**
+         * Returns the number of codelist and term rows read
+         * @return the row count
+         */
+        public long getRows() {
+            return this.rows;
+        }
+
+        /**
+         * Returns the wall-clock time of the conversion
+         * @return the elapsed time in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+    }
+}
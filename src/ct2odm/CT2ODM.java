@@ -15,17 +15,35 @@
 */
 package ct2odm;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.TreeMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.validation.Schema;
 import org.jdom2.Attribute;
 import org.jdom2.Document;
 import org.jdom2.Element;
@@ -39,13 +57,101 @@ import java.time.LocalDateTime;
  * @author Sam Hume swhume@gmail.com
  */
 public class CT2ODM {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 18;
+    private static final int ASYNC_CHUNK_SIZE = 1 << 16;
+    private static final int ASYNC_QUEUE_SIZE = 8;
+    private static final int EMITTER_QUEUE_SIZE = 64;
     private String odmFileName;
     private String txtFileName;
     private String pkgDate;
     private String standard;
     private String version;
+    private boolean streaming;
+    private boolean parallel;
+    private boolean columnar;
+    private boolean compact;
+    private Boolean gzip;
+    private boolean async = Runtime.getRuntime().availableProcessors() > 1;
+    private String prevTxtFileName;
+    private String prevPkgDate;
+    private String reportFileName;
+    private String fileType = "Snapshot";
+    private String metricsFileName;
+    private String jsonFileName;
+    private boolean repair = true;
+    private String quarantineFileName;
+    private boolean quarantineStarted;
+    private long orphanBudget = 64L << 20;
+    private String csvFileName;
+    private String schemaFileName;
+    private TreeSet<String> selectedCodelists;
+    private Schema schema;
+    private ValidatingWriter validation;
+    private String cacheDir;
+    private ConversionMetrics metrics;
+    private String batchSource;
+    private String historyDir;
+    private String historyCode;
+    private String watchDir;
+    private String statusFileName;
+    private int servePort = -1;
+    private boolean reverse;
+    private boolean verify;
+    private String namePattern;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long rowCount;
     private Document document;
-    private final XMLNamespace ns = new XMLNamespace();    
+    private final XMLNamespace ns = XMLNamespace.getInstance();    
+    
+    CT2ODM() {
+    }
+
+    /**
+     * CT2ODM constructor used to configure a conversion without command-line arguments
+     * @param txtFileName path and file name of the tab delimited text input file
+     * @param odmFileName path and file name of the odm output file
+     * @param standard name of the standard for the CT package (e.g. SDTM)
+     * @param pkgDate CT package date in ISO 8601 format (YYYY-MM-DD)
+     * @param version CT-XML schema version
+     * @param streaming true to write the ODM file without building a JDOM document
+     */
+    CT2ODM(String txtFileName, String odmFileName, String standard, String pkgDate, String version, boolean streaming) {
+        this.txtFileName = txtFileName;
+        this.odmFileName = odmFileName;
+        this.standard = standard;
+        this.pkgDate = pkgDate;
+        this.version = version;
+        this.streaming = streaming;
+    }
+
+    /**
+     * Creates the conversion of one package of a batch or watch run with the conversion
+     * and output format options parsed from the command line. The packages converted
+     * concurrently share the processors, so a parallel conversion renders its code lists
+     * on its share of them.
+     * @param txtFileName path and file name of the tab delimited text input file
+     * @param odmFileName path and file name of the odm output file
+     * @param standard name of the standard for the CT package (e.g. SDTM)
+     * @param pkgDate CT package date in ISO 8601 format (YYYY-MM-DD)
+     * @param version CT-XML schema version, or null for the command line version
+     * @return the configured conversion
+     */
+    CT2ODM newJob(String txtFileName, String odmFileName, String standard, String pkgDate, String version) {
+        CT2ODM job = new CT2ODM(txtFileName, odmFileName, standard, pkgDate, version == null ? this.version : version, this.streaming);
+        job.parallel = this.parallel;
+        job.threads = Math.max(1, Runtime.getRuntime().availableProcessors() / this.threads);
+        job.columnar = this.columnar;
+        job.compact = this.compact;
+        job.gzip = this.gzip;
+        job.async = this.async;
+        job.repair = this.repair;
+        job.orphanBudget = this.orphanBudget;
+        job.cacheDir = this.cacheDir;
+        job.selectedCodelists = this.selectedCodelists;
+        job.schemaFileName = this.schemaFileName;
+        job.schema = this.schema;
+        return job;
+    }
     
     /**
     * main
@@ -54,23 +160,235 @@ public class CT2ODM {
     * "txt=txt-file" path and file name of the tab delimited text input file
     * "std=standard-name" name of the standard for the CT package (e.g. sdtm)
     * "date=package-date" CT package date in ISO 8601 format (YYYY-MM-DD)
+    * "ver=schema-version" CT-XML schema version (defaults to 1.1.1)
+    * "stream=true|false" write the ODM file directly to a stream without building a JDOM document
+    * "repair=true|false" stitch rows split by stray line feeds and remove control characters while parsing (defaults to true)
+    * "quarantine=report-file" tab delimited report of the rows that could not be repaired, with their line numbers
+    * "budget=megabytes" heap used to hold terms read before their code list row before they are spilled to temporary files (defaults to 64)
+    * "json=json-file" also write the package as JSON from the same parse, concurrently with the ODM file
+    * "csv=csv-file" also write the package as a flattened CSV file with one row per term, concurrently with the ODM file
+    * "codelists=c-code,c-code" write only the listed code lists, read from their rows located with a sidecar index of the text file (kept in the cache directory)
+    * "validate=xsd-file" validate the ODM file against the local CT-XML schema on a separate thread while it is written
+    * "format=pretty|compact" write the ODM file indented (the default) or without indentation
+    * "gzip=true|false" GZIP compress the ODM file (defaults to true when the ODM file name ends in .gz)
+    * "async=true|false" encode, compress, and write the ODM file on a separate writer thread (defaults to true on multi-processor machines)
+    * "columnar=true|false" hold the parsed terms in a columnar TermStore instead of one Term object per row
+    * "prev=txt-file" previous package text file; only the added and changed code lists are written to a Transactional ODM file
+    * "prevdate=package-date" previous package date used to set the PriorFileOID of the Transactional ODM file; requires prev
+    * "report=report-file" path and file name of the tab delimited change report written when prev is set
+    * "cache=directory" keep a binary snapshot of each parsed package in a directory and reuse it while the text file is unchanged
+    * "metrics=json-file" write the phase timing, throughput, and memory metrics of the conversion as JSON
+    * "batch=manifest-or-dir" convert every package listed in a manifest file or found in a directory
+    * "pattern=file-name-regex" regex with std and date groups used to name packages found in a batch directory
+    * "history=txt-dir" load every package of the std standard found in a directory into one deduplicated history, then write the package with the date to odm
+    * "code=c-code" with history, list the packages containing the code list or term C-code and the packages in which its definition changed
+    * "watch=inbox-dir" keep running and convert each text file created or modified in the inbox directory
+    * "status=json-file" JSON status file with the state and job counts of the watch daemon
+    * "threads=count" number of packages converted concurrently in batch mode, or codelists rendered concurrently in parallel mode
+    * "reverse=true|false" read the odm CT-XML file and write the package back out as the txt tab delimited text file
+    * "verify=true|false" compare the odm CT-XML file with the txt text file code list by code list and report the differences
+    * "serve=port" load the text file and answer code list and term lookups as JSON over HTTP on a loopback port instead of writing an ODM file
+    * "parallel=true|false" render the codelists concurrently on a worker pool when streaming the ODM file
      */
     public static void main(String[] args) {
         CT2ODM ct2odm = new CT2ODM();
         ct2odm.setCommandLineOptions(args);
+        if (ct2odm.batchSource != null) {
+            ct2odm.validateBatchOptions();
+            ct2odm.runBatch();
+            return;
+        }
+        if (ct2odm.historyDir != null) {
+            ct2odm.validateHistoryOptions();
+            ct2odm.runHistory();
+            return;
+        }
+        if (ct2odm.watchDir != null) {
+            ct2odm.validateWatchOptions();
+            ct2odm.runWatchDaemon();
+            return;
+        }
+        if (ct2odm.reverse || ct2odm.verify) {
+            ct2odm.validateRoundTripOptions();
+            try {
+                if (ct2odm.reverse) {
+                    ct2odm.writeTxtFile();
+                } else {
+                    ct2odm.verifyOdmFile();
+                }
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+            return;
+        }
+        if (ct2odm.servePort >= 0) {
+            ct2odm.validateServeOptions();
+            ct2odm.runLookupServer();
+            return;
+        }
         ct2odm.validateCommandLineOptions();
-        ct2odm.buildOdmFile();
+        try {
+            ct2odm.buildOdmFile();
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+            System.exit(0);
+        }
     }
 
     /* template for building ODM XML controlled terminology file */
-    private void buildOdmFile() {
-        TreeMap<String, Codelist> pkg = ProcessTxtFile();
+    void buildOdmFile() throws IOException {
+        this.rowCount = 0;
+        this.metrics = new ConversionMetrics(this.txtFileName);
+        if (this.metricsFileName != null) {
+            this.metrics.resetPeakHeap();
+        }
+        ConversionMetrics.Phase phase = this.metrics.begin("parse");
+        TreeMap<String, Codelist> pkg = ProcessTxtFile(this.txtFileName);
+        phase.end();
+        this.metrics.addBytesRead(new File(this.txtFileName).length());
+        if (this.prevTxtFileName != null) {
+            phase = this.metrics.begin("delta");
+            pkg = buildDelta(pkg);
+            phase.end();
+            this.metrics.addBytesRead(new File(this.prevTxtFileName).length());
+        }
+        writePackage(pkg);
+    }
+
+    /* write the parsed package to the ODM file and the other configured outputs */
+    private void writePackage(TreeMap<String, Codelist> pkg) throws IOException {
+        this.validation = null;
+        if (this.schemaFileName != null && this.schema == null) {
+            this.schema = ValidatingWriter.loadSchema(this.schemaFileName);
+        }
+        ConversionMetrics.Phase phase;
+        if (this.jsonFileName != null || this.csvFileName != null) {
+            phase = this.metrics.begin("emit");
+            emitOutputs(pkg);
+            phase.end();
+        } else if (this.streaming) {
+            Writer out = openOdmWriter();
+            try {
+                phase = this.metrics.begin("serialize");
+                streamOdmFile(pkg, out);
+                phase.end();
+            } finally {
+                phase = this.metrics.begin("flush");
+                out.close();
+                phase.end();
+            }
+        } else {
+            phase = this.metrics.begin("build");
+            buildDocument(pkg);
+            phase.end();
+            writeOdmFile();
+        }
+        recordCounts(pkg);
+        if (this.metricsFileName != null) {
+            this.metrics.writeJson(this.metricsFileName);
+        }
+        reportValidation();
+    }
+
+    /* print the schema errors found while the ODM file was written; an invalid file fails the conversion */
+    private void reportValidation() throws IOException {
+        if (this.validation == null) {
+            return;
+        }
+        long count = this.validation.getErrorCount();
+        if (count == 0) {
+            System.out.println("Schema validation of " + this.odmFileName + ": no errors");
+            return;
+        }
+        List<String> errors = this.validation.getErrors();
+        for (int i = 0; i < Math.min(20, errors.size()); i++) {
+            System.out.println(errors.get(i));
+        }
+        throw new IOException("The ODM file " + this.odmFileName + " is not valid against the schema " + this.schemaFileName
+                + ": " + count + " errors");
+    }
+
+    /* read the CT-XML file and write its code lists and terms as an NCI EVS tab delimited text file */
+    void writeTxtFile() throws IOException {
+        try (OdmCTReader reader = new OdmCTReader(this.odmFileName);
+                Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.txtFileName), StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE)) {
+            out.write(CTTextReader.HEADER + "\n");
+            Codelist cl;
+            while ((cl = reader.nextCodelist()) != null) {
+                writeTxtRow(out, cl.toRow());
+                for (Term t : cl.getTerms()) {
+                    writeTxtRow(out, t.toRow(cl));
+                }
+            }
+        }
+    }
+
+    /* write one tab delimited row of the text file */
+    private static void writeTxtRow(Writer out, String[] row) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                out.write('\t');
+            }
+            out.write(row[i] == null ? "" : row[i]);
+        }
+        out.write('\n');
+    }
+
+    /* compare the CT-XML file with the text file and report the differences */
+    void verifyOdmFile() throws IOException {
+        PackageVerifier verifier = new PackageVerifier(ProcessTxtFile(this.txtFileName));
+        try (OdmCTReader reader = new OdmCTReader(this.odmFileName)) {
+            verifier.verify(reader);
+        }
+        System.out.println(verifier.summary());
+        if (this.reportFileName != null) {
+            verifier.writeReport(this.reportFileName);
+        } else {
+            List<PackageVerifier.Entry> entries = verifier.getEntries();
+            for (int i = 0; i < Math.min(entries.size(), 20); i++) {
+                System.out.println(entries.get(i));
+            }
+            if (entries.size() > 20) {
+                System.out.println("... " + (entries.size() - 20) + " more differences; use report=<file> to write them all");
+            }
+        }
+    }
+
+    /* record the package size and bytes written in the conversion metrics */
+    private void recordCounts(TreeMap<String, Codelist> pkg) {
+        long terms = 0;
+        for (Codelist cl : pkg.values()) {
+            terms += cl.getTermCount();
+        }
+        this.metrics.setCounts(this.rowCount, pkg.size(), terms);
+        this.metrics.addBytesWritten(new File(this.odmFileName).length());
+        if (this.jsonFileName != null) {
+            this.metrics.addBytesWritten(new File(this.jsonFileName).length());
+        }
+        if (this.csvFileName != null) {
+            this.metrics.addBytesWritten(new File(this.csvFileName).length());
+        }
+    }
+
+    /* create the JDOM document for the ODM XML controlled terminology file */
+    Document buildDocument(TreeMap<String, Codelist> pkg) {
         Element root = createRootNode();
         this.document = new Document(root);
         generateClXml(pkg, root);
-        writeOdmFile();
+        return this.document;
     }
     
+    /* compare the package to the previous package and return the code lists for a Transactional ODM file */
+    private TreeMap<String, Codelist> buildDelta(TreeMap<String, Codelist> pkg) throws IOException {
+        PackageDelta delta = new PackageDelta(ProcessTxtFile(this.prevTxtFileName), pkg);
+        if (this.reportFileName != null) {
+            delta.writeReport(this.reportFileName);
+        }
+        System.out.println(delta.summary());
+        this.fileType = "Transactional";
+        return delta.getChangedCodelists();
+    }
+
     /* create ODM XML controlled terminology content from TreeMap loaded from text file */
     private void generateClXml(TreeMap<String, Codelist> pkg, Element root) {
         Element study = new Element("Study", this.ns.getOdmNamespace());
@@ -93,6 +411,157 @@ public class CT2ODM {
         root.addContent(study);
     }
     
+    /* write the ODM file directly to the output writer without building a JDOM document */
+    void streamOdmFile(TreeMap<String, Codelist> pkg, Writer out) throws IOException {
+        try {
+            XMLStreamWriter w = new OdmStreamWriter(out, 0, this.compact);
+            writeOdmHeader(w);
+            if (this.parallel && this.threads > 1) {
+                writeCodeListsParallel(pkg, (OdmStreamWriter) w);
+            } else {
+                for (Codelist cl : pkg.values()) {
+                    writeCodeList(w, cl);
+                }
+            }
+            w.writeEndDocument();
+            w.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    /* write the XML declaration and the ODM content that precedes the first CodeList element */
+    private void writeOdmHeader(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartDocument("UTF-8", "1.0");
+        writeRootStart(w);
+        writeOdmStart(w, "Study");
+        w.writeAttribute("OID", "CDISC_CT." + this.standard + "." + this.pkgDate);
+        writeGlobalVariables(w);
+        writeMDVStart(w);
+    }
+
+    /* write the ODM file and the JSON and CSV files that are configured concurrently from the parsed package */
+    private void emitOutputs(TreeMap<String, Codelist> pkg) throws IOException {
+        List<PackageEmitter> emitters = new ArrayList<>();
+        try {
+            emitters.add(new OdmEmitter(openOdmWriter()));
+            if (this.jsonFileName != null) {
+                emitters.add(new JsonEmitter(openOutputWriter(this.jsonFileName), this.standard, this.pkgDate));
+            }
+            if (this.csvFileName != null) {
+                emitters.add(new CsvEmitter(openOutputWriter(this.csvFileName)));
+            }
+        } catch (IOException ex) {
+            for (PackageEmitter emitter : emitters) {
+                emitter.close();
+            }
+            throw ex;
+        }
+        new PackageFanOut(EMITTER_QUEUE_SIZE).run(pkg.values(), emitters);
+    }
+
+    /* write a CodeList element and its EnumeratedItem elements */
+    private static void writeCodeList(XMLStreamWriter w, Codelist cl) throws XMLStreamException {
+        cl.writeCodeListStart(w);
+        for (Term t : cl.getTerms()) {
+            t.writeEnumeratedItem(w);
+        }
+        cl.writeCodeListEnd(w);
+    }
+
+    /* render each CodeList to an XML fragment on a worker pool and write the fragments in C-code order */
+    private void writeCodeListsParallel(TreeMap<String, Codelist> pkg, OdmStreamWriter w) throws IOException, XMLStreamException {
+        final int depth = w.getChildDepth();
+        final boolean compactFormat = this.compact;
+        final int maxInFlight = this.threads * 4;
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        Deque<Future<String>> inFlight = new ArrayDeque<>();
+        try {
+            for (final Codelist cl : pkg.values()) {
+                inFlight.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws XMLStreamException {
+                        StringWriter fragment = new StringWriter();
+                        writeCodeList(new OdmStreamWriter(fragment, depth, compactFormat), cl);
+                        return fragment.toString();
+                    }
+                }));
+                if (inFlight.size() >= maxInFlight) {
+                    w.writeFragment(nextFragment(inFlight));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                w.writeFragment(nextFragment(inFlight));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /* wait for the oldest rendered CodeList fragment */
+    private static String nextFragment(Deque<Future<String>> inFlight) throws IOException {
+        try {
+            return inFlight.poll().get();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering the code lists", ex);
+        }
+    }
+
+    /* write the ODM root element start tag, namespace declarations, and attributes */
+    private void writeRootStart(XMLStreamWriter w) throws XMLStreamException {
+        writeOdmStart(w, "ODM");
+        w.writeDefaultNamespace(this.ns.getOdmNamespace().getURI());
+        w.writeNamespace(this.ns.getNciNamespace().getPrefix(), this.ns.getNciNamespace().getURI());
+        w.writeNamespace(this.ns.getXsiNamespace().getPrefix(), this.ns.getXsiNamespace().getURI());
+        w.writeAttribute("FileType", this.fileType);
+        w.writeAttribute("FileOID", "CDISC_CT." + this.standard + "." + this.pkgDate);
+        if (this.prevPkgDate != null) {
+            w.writeAttribute("PriorFileOID", "CDISC_CT." + this.standard + "." + this.prevPkgDate);
+        }
+        w.writeAttribute("Granularity", "Metadata");
+        w.writeAttribute("CreationDateTime", LocalDateTime.now().withNano(0).toString());
+        w.writeAttribute("AsOfDateTime", this.pkgDate + "T00:00:00");
+        w.writeAttribute("ODMVersion", "1.3.2");
+        w.writeAttribute(this.ns.getNciNamespace().getPrefix(), this.ns.getNciNamespace().getURI(), "ControlledTerminologyVersion", this.version);
+        w.writeAttribute("Originator", "CDISC Data Exchange Standards Team (CT2ODM converter)");
+        w.writeAttribute("SourceSystem", "NCI Thesaurus");
+        w.writeAttribute("SourceSystemVersion", this.pkgDate);
+    }
+
+    /* write the ODM GlobalVariables element */
+    private void writeGlobalVariables(XMLStreamWriter w) throws XMLStreamException {
+        String studyInfo = "CDISC " + this.standard + " Controlled Terminology";
+        writeOdmStart(w, "GlobalVariables");
+        writeOdmText(w, "StudyName", studyInfo);
+        writeOdmText(w, "StudyDescription", studyInfo + ", " + this.pkgDate);
+        writeOdmText(w, "ProtocolName", studyInfo);
+        w.writeEndElement();
+    }
+
+    /* write the ODM MetaDataVersion element start tag and attributes */
+    private void writeMDVStart(XMLStreamWriter w) throws XMLStreamException {
+        writeOdmStart(w, "MetaDataVersion");
+        w.writeAttribute("OID", "CDISC_CT_MetaDataVersion." + this.standard + "." + this.pkgDate);
+        String mdvInfo = "CDISC " + this.standard + " Controlled Termninology";
+        w.writeAttribute("Name", mdvInfo);
+        w.writeAttribute("Description", mdvInfo + ", " + this.pkgDate);
+    }
+
+    /* write the start tag of an element in the ODM namespace */
+    private void writeOdmStart(XMLStreamWriter w, String name) throws XMLStreamException {
+        w.writeStartElement(this.ns.getOdmNamespace().getPrefix(), name, this.ns.getOdmNamespace().getURI());
+    }
+
+    /* write a text-only element in the ODM namespace */
+    private void writeOdmText(XMLStreamWriter w, String name, String text) throws XMLStreamException {
+        writeOdmStart(w, name);
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
+
     /* create the ODM MetaDataVersion element */
     private Element generateMDV() {
         Element mdv = new Element("MetaDataVersion", this.ns.getOdmNamespace());
@@ -120,44 +589,441 @@ public class CT2ODM {
     }
     
     /* create a TreeMap of Codelist objects from delimited text file */
-    private TreeMap<String, Codelist> ProcessTxtFile() {
+    TreeMap<String, Codelist> ProcessTxtFile(String fileName) throws IOException {
+      if (this.selectedCodelists != null) {
+          return parseSelectedCodelists(fileName);
+      }
+      if (this.cacheDir == null) {
+          return parseTxtFile(fileName, null);
+      }
+      PackageCache cache = new PackageCache(this.cacheDir, fileName, this.repair);
+      TermStore store = this.columnar ? new TermStore() : null;
+      TreeMap<String, Codelist> pkg = cache.load(store);
+      if (pkg != null) {
+          if (store != null) {
+              store.trim();
+          }
+          for (Codelist cl : pkg.values()) {
+              this.rowCount += 1 + cl.getTermCount();
+          }
+          reportRepairs(fileName, cache.getRepairedCount(), cache.getRejectedRows());
+          reportOrphans(fileName, cache.getOrphanRows());
+          return pkg;
+      }
+      pkg = parseTxtFile(fileName, cache);
+      try {
+          cache.save(pkg);
+      } catch (IOException ex) {
+          // the conversion does not depend on the cache, so only report the failure
+          System.out.println("Unable to write the package cache for " + fileName + ": " + ex.getMessage());
+      }
+      return pkg;
+    }
+
+    /* parse the delimited text file into a TreeMap of Codelist objects, recording the rows repaired and
+       quarantined in the package cache when one is given */
+    private TreeMap<String, Codelist> parseTxtFile(String fileName, PackageCache cache) throws IOException {
       TreeMap<String, Codelist> pkg = new TreeMap<>();
-      Charset charset = Charset.forName("UTF-8");
-      StringBuilder txt;
-      try (BufferedReader f = new BufferedReader(new FileReader(this.txtFileName))) {
-          String line;
-          txt = new StringBuilder();
-          f.readLine();
-          while((line = f.readLine()) != null) {
-              String[] row = line.split("\\t");
-              if (row.length < 8) {
+      StringPool pool = new StringPool();
+      TermStore store = this.columnar ? new TermStore() : null;
+      try (CTTextReader f = new CTTextReader(fileName, pool);
+              OrphanTermBuffer orphans = new OrphanTermBuffer(this.orphanBudget)) {
+          String[] row;
+          f.setRepair(this.repair);
+          f.skipLine();
+          while((row = f.nextRow()) != null) {
+              this.rowCount++;
+              if (f.getFieldCount() < CTTextReader.FIELD_COUNT) {
                   // assert no unexpected content exists in the CT text input file
-                  System.out.println("Invalid row content likely due to invalid characters"
-                          + " in the load file in row: " + row[0] + "." + row[1]);
-                  System.exit(0);
+                  throw new IOException("Invalid row content likely due to invalid characters"
+                          + " in the load file in row: " + row[0] + "." + row[1] + " (line " + f.getLineNumber() + ")");
               } else if (row[1] == null || row[1].isEmpty()) {
-                  pkg.put(row[0], new Codelist(row));
+                  Codelist cl = new Codelist(row);
+                  pkg.put(row[0], cl);
+                  for (OrphanTermBuffer.Orphan o : orphans.take(row[0])) {
+                      addTerm(cl, o.getRow(), pool, store);
+                  }
               } else {
                   Codelist clTermList = pkg.get(row[1]);
-                  Term t = new Term(row);
-                  clTermList.AddTerm(t);
+                  if (clTermList == null) {
+                      // the code list row has not been read yet
+                      orphans.add(row, f.getLineNumber());
+                  } else {
+                      addTerm(clTermList, row, pool, store);
+                  }
               }
           }
-      } catch (IOException ex) {
-            Logger.getLogger(CT2ODM.class.getName()).log(Level.SEVERE, null, ex);
+          reportRepairs(fileName, f.getRepairedCount(), f.getRejectedRows());
+          List<CTTextReader.RejectedRow> rejected = addSpilledTerms(pkg, orphans, pool, store);
+          reportOrphans(fileName, rejected);
+          if (cache != null) {
+              cache.setRejections(f.getRepairedCount(), f.getRejectedRows(), rejected);
+          }
+      }
+      if (store != null) {
+          store.trim();
       }
       return pkg;
     }
         
+    /* read only the rows of the selected code lists, located with the sidecar code list index of the text file, which
+       is kept in the cache directory when one is set; the rows repaired are those of the selected code lists, and as a
+       rejected row cannot be placed in a code list, every row the index build rejected is quarantined */
+    private TreeMap<String, Codelist> parseSelectedCodelists(String fileName) throws IOException {
+      CodelistIndex index = new CodelistIndex(this.cacheDir, fileName, this.repair);
+      if (!index.load()) {
+          index.build();
+          try {
+              index.save();
+          } catch (IOException ex) {
+              // the conversion does not depend on the index, so only report the failure
+              System.out.println("Unable to write the code list index for " + fileName + ": " + ex.getMessage());
+          }
+      }
+      TreeMap<String, Codelist> pkg = new TreeMap<>();
+      StringPool pool = new StringPool();
+      TermStore store = this.columnar ? new TermStore() : null;
+      try (CTTextReader f = new CTTextReader(fileName, pool)) {
+          f.setRepair(this.repair);
+          for (String clCode : this.selectedCodelists) {
+              int[] ranges = index.getRanges(clCode);
+              if (ranges == null) {
+                  System.out.println("Code list " + clCode + " is not in " + fileName);
+                  continue;
+              }
+              Codelist cl = null;
+              List<String[]> orphans = new ArrayList<>();
+              for (int i = 0; i < ranges.length; i += 3) {
+                  f.setRange(ranges[i], ranges[i + 1], ranges[i + 2]);
+                  String[] row;
+                  while ((row = f.nextRow()) != null) {
+                      this.rowCount++;
+                      if (row[1] == null || row[1].isEmpty()) {
+                          cl = new Codelist(row);
+                          for (String[] o : orphans) {
+                              addTerm(cl, o, pool, store);
+                          }
+                          orphans.clear();
+                      } else if (cl == null) {
+                          // the code list row follows in a later range
+                          orphans.add(row.clone());
+                      } else {
+                          addTerm(cl, row, pool, store);
+                      }
+                  }
+              }
+              if (cl == null) {
+                  System.out.println("Code list " + clCode + " has terms but no code list row in " + fileName);
+              } else {
+                  pkg.put(clCode, cl);
+              }
+          }
+          reportRepairs(fileName, f.getRepairedCount(), index.getRejectedRows());
+      }
+      if (store != null) {
+          store.trim();
+      }
+      return pkg;
+    }
+
+    /* add a term row to a code list as a Term object or a stored term */
+    private static void addTerm(Codelist cl, String[] row, StringPool pool, TermStore store) {
+        if (store != null) {
+            cl.addStoredTerm(store, store.add(row));
+        } else {
+            cl.AddTerm(new Term(row, pool));
+        }
+    }
+
+    /* add the spilled orphan terms ahead of the other terms of their code list and return the
+       orphan terms whose code list is not in the file */
+    private static List<CTTextReader.RejectedRow> addSpilledTerms(TreeMap<String, Codelist> pkg, OrphanTermBuffer orphans,
+            StringPool pool, TermStore store) throws IOException {
+        List<CTTextReader.RejectedRow> rejected = new ArrayList<>();
+        OrphanTermBuffer.Merge merge = orphans.merge();
+        if (merge != null) {
+            try {
+                String clCode = null;
+                Codelist cl = null;
+                int count = 0;
+                OrphanTermBuffer.Orphan o;
+                while ((o = merge.next()) != null) {
+                    if (!o.getRow()[1].equals(clCode)) {
+                        if (cl != null) {
+                            cl.moveTermsToFront(count);
+                        }
+                        clCode = o.getRow()[1];
+                        cl = pkg.get(clCode);
+                        count = 0;
+                    }
+                    if (cl == null) {
+                        rejected.add(orphanRejection(o));
+                    } else {
+                        addTerm(cl, o.getRow(), pool, store);
+                        count++;
+                    }
+                }
+                if (cl != null) {
+                    cl.moveTermsToFront(count);
+                }
+            } finally {
+                merge.close();
+            }
+        }
+        for (OrphanTermBuffer.Orphan o : orphans.takeRemaining()) {
+            rejected.add(orphanRejection(o));
+        }
+        return rejected;
+    }
+
+    /* report the orphan terms whose code list is not in the file and write them to the quarantine report */
+    private void reportOrphans(String fileName, List<CTTextReader.RejectedRow> rejected) throws IOException {
+        if (!rejected.isEmpty()) {
+            System.out.println(fileName + ": " + rejected.size() + " terms quarantined, their code list is not in the file"
+                    + (this.quarantineFileName != null ? "" : " (set quarantine=<file> to list them)"));
+            writeQuarantine(fileName, rejected);
+        }
+    }
+
+    /* returns the quarantine entry of an orphan term whose code list is not in the file */
+    private static CTTextReader.RejectedRow orphanRejection(OrphanTermBuffer.Orphan o) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < o.getRow().length; i++) {
+            content.append(i == 0 ? "" : "\t").append(o.getRow()[i] == null ? "" : o.getRow()[i]);
+        }
+        return new CTTextReader.RejectedRow(o.getLineNumber(), "Code list " + o.getRow()[1] + " not found", content.toString());
+    }
+
+    /* report the rows repaired while reading a text file and write the rejected rows to the quarantine report */
+    private void reportRepairs(String fileName, int repairedCount, List<CTTextReader.RejectedRow> rejected) throws IOException {
+        if (repairedCount == 0 && rejected.isEmpty()) {
+            return;
+        }
+        System.out.println(fileName + ": " + repairedCount + " rows repaired, " + rejected.size() + " rows quarantined"
+                + (rejected.isEmpty() || this.quarantineFileName != null ? "" : " (set quarantine=<file> to list them)"));
+        writeQuarantine(fileName, rejected);
+    }
+
+    /* append rejected rows to the quarantine report, creating it with a header row on first use */
+    private void writeQuarantine(String fileName, List<CTTextReader.RejectedRow> rejected) throws IOException {
+        if (this.quarantineFileName == null || rejected.isEmpty()) {
+            return;
+        }
+        boolean append = this.quarantineStarted;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.quarantineFileName, append), StandardCharsets.UTF_8))) {
+            if (!append) {
+                out.write("File\tLine\tReason\tContent\n");
+            }
+            for (CTTextReader.RejectedRow r : rejected) {
+                out.write(escapeTsv(fileName) + "\t" + r.getLineNumber() + "\t" + escapeTsv(r.getReason()) + "\t" + escapeTsv(r.getContent()) + "\n");
+            }
+        }
+        this.quarantineStarted = true;
+    }
+
+    /* escape a quarantine report field so it stays in one column: backslash, tab, line feed, and carriage
+       return as \\, \t, \n, and \r, and other control characters as \\uXXXX */
+    private static String escapeTsv(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= ' ' && c != '\\' && c != 0x7f) {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+
     /* write the ODM file to the output XML file using pretty print */
-    private void writeOdmFile() {
+    private void writeOdmFile() throws IOException {
+        Writer out = openOdmWriter();
+        ConversionMetrics.Phase phase;
         try {
-            XMLOutputter xmlOutput = new XMLOutputter();
-            xmlOutput.setFormat(Format.getPrettyFormat());
-            xmlOutput.output(document, new FileWriter(odmFileName));
-        } catch (IOException io) {
-            System.out.println(io.getMessage());
-        }    
+            phase = this.metrics.begin("serialize");
+            writeDocument(out);
+            phase.end();
+        } finally {
+            phase = this.metrics.begin("flush");
+            out.close();
+            phase.end();
+        }
+    }
+
+    /* write the JDOM document to the output writer using pretty print or the compact format */
+    void writeDocument(Writer out) throws IOException {
+        XMLOutputter xmlOutput = new XMLOutputter();
+        xmlOutput.setFormat(this.compact ? Format.getCompactFormat() : Format.getPrettyFormat());
+        xmlOutput.output(document, out);
+    }
+
+    /* open the ODM output file, validated against the schema as it is written when configured */
+    private Writer openOdmWriter() throws IOException {
+        Writer out = openOutputWriter(this.odmFileName);
+        if (this.schema == null) {
+            return out;
+        }
+        this.validation = new ValidatingWriter(out, this.schema, ASYNC_CHUNK_SIZE, ASYNC_QUEUE_SIZE);
+        return this.validation;
+    }
+
+    /* open a UTF-8 output file, compressed and written on a writer thread when configured */
+    private Writer openOutputWriter(String fileName) throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(fileName), OUTPUT_BUFFER_SIZE);
+        boolean compress = this.gzip != null ? this.gzip : fileName.toLowerCase().endsWith(".gz");
+        if (compress) {
+            try {
+                os = new GZIPOutputStream(os, OUTPUT_BUFFER_SIZE);
+            } catch (IOException ex) {
+                os.close();
+                throw ex;
+            }
+        }
+        Writer out = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+        if (this.async) {
+            return new AsyncWriter(out, ASYNC_CHUNK_SIZE, ASYNC_QUEUE_SIZE);
+        }
+        return new BufferedWriter(out, OUTPUT_BUFFER_SIZE);
+    }
+
+    /* convert each package in the batch manifest or directory and report the results */
+    private void runBatch() {
+        BatchConverter batch = new BatchConverter(this.threads);
+        try {
+            if (this.schemaFileName != null) {
+                this.schema = ValidatingWriter.loadSchema(this.schemaFileName);
+            }
+            List<CT2ODM> jobs;
+            if (new File(this.batchSource).isDirectory()) {
+                jobs = batch.scanDirectory(this.batchSource, this.odmFileName, this.namePattern, this);
+            } else {
+                jobs = batch.readManifest(this.batchSource, this);
+            }
+            batch.report(batch.run(jobs));
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /* load each package of the standard in the history directory, answer the C-code query, and write the dated package */
+    private void runHistory() {
+        try {
+            TermHistory history = new TermHistory();
+            BatchConverter batch = new BatchConverter(1);
+            long start = System.nanoTime();
+            for (CT2ODM pkgFile : batch.scanDirectory(this.historyDir, this.historyDir, this.namePattern, this)) {
+                if (pkgFile.standard.equalsIgnoreCase(this.standard)) {
+                    history.add(pkgFile.pkgDate, ProcessTxtFile(pkgFile.txtFileName));
+                }
+            }
+            System.out.println(String.format("Loaded %d %s packages in %d ms: %d code list and term rows stored as %d versions",
+                    history.getPackageCount(), this.standard, (System.nanoTime() - start) / 1000000,
+                    history.getRowCount(), history.getVersionCount()));
+            if (this.historyCode != null) {
+                start = System.nanoTime();
+                List<String> dates = history.findPackages(this.historyCode);
+                List<TermHistory.Change> changes = history.getDefinitionChanges(this.historyCode);
+                long micros = (System.nanoTime() - start) / 1000;
+                System.out.println(this.historyCode + " is in " + dates.size() + " packages: " + String.join(", ", dates));
+                for (TermHistory.Change c : changes) {
+                    System.out.println(c);
+                }
+                System.out.println("Queried in " + micros + " us");
+            }
+            if (this.pkgDate != null) {
+                TreeMap<String, Codelist> pkg = history.getPackage(this.pkgDate);
+                if (pkg == null) {
+                    System.out.println("The history has no " + this.standard + " package dated " + this.pkgDate);
+                    return;
+                }
+                this.metrics = new ConversionMetrics(this.historyDir);
+                if (this.metricsFileName != null) {
+                    this.metrics.resetPeakHeap();
+                }
+                writePackage(pkg);
+            }
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /* watch the inbox directory and convert each text file dropped into it until the process is stopped */
+    private void runWatchDaemon() {
+        final WatchDaemon daemon;
+        try {
+            if (this.schemaFileName != null) {
+                this.schema = ValidatingWriter.loadSchema(this.schemaFileName);
+            }
+            daemon = new WatchDaemon(this.watchDir, this.odmFileName, this.statusFileName, this.namePattern, this.threads, this);
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                daemon.stop();
+            }
+        });
+        System.out.println("Watching " + this.watchDir + " for text CT files; writing CT-XML files to " + this.odmFileName);
+        try {
+            daemon.run();
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the path and file name of the tab delimited text input file
+     * @return txtFileName the text input file
+     */
+    String getTxtFileName() {
+        return this.txtFileName;
+    }
+
+    /**
+     * Returns the path and file name of the odm output file
+     * @return odmFileName the odm output file
+     */
+    String getOdmFileName() {
+        return this.odmFileName;
+    }
+
+    /**
+     * Sets the path and file name the odm output file is written to
+     * @param odmFileName the odm output file
+     */
+    void setOdmFileName(String odmFileName) {
+        this.odmFileName = odmFileName;
+    }
+
+    /**
+     * Returns the number of rows read from the text files by the last conversion
+     * @return rowCount the number of codelist and term rows read
+     */
+    long getRowCount() {
+        return this.rowCount;
     }
 
     /* create the ODM XML root element node */
@@ -166,8 +1032,11 @@ public class CT2ODM {
         root.addNamespaceDeclaration(this.ns.getOdmNamespace());
         root.addNamespaceDeclaration(this.ns.getNciNamespace());
         root.addNamespaceDeclaration(this.ns.getXsiNamespace());
-        root.setAttribute(new Attribute("FileType", "Snapshot"));
+        root.setAttribute(new Attribute("FileType", this.fileType));
         root.setAttribute(new Attribute("FileOID", "CDISC_CT." + this.standard + "." + this.pkgDate));
+        if (this.prevPkgDate != null) {
+            root.setAttribute(new Attribute("PriorFileOID", "CDISC_CT." + this.standard + "." + this.prevPkgDate));
+        }
         root.setAttribute(new Attribute("Granularity", "Metadata"));
         root.setAttribute(new Attribute("CreationDateTime", LocalDateTime.now().withNano(0).toString()));
         root.setAttribute(new Attribute("AsOfDateTime", this.pkgDate + "T00:00:00"));
@@ -194,6 +1063,72 @@ public class CT2ODM {
                 this.pkgDate = argument.substring(argument.indexOf("=")+1); 
             } else if (argument.startsWith("ver=")) {
                 this.version = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("stream=")) {
+                this.streaming = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+            } else if (argument.startsWith("parallel=")) {
+                this.parallel = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+                this.streaming = this.streaming || this.parallel;
+            } else if (argument.startsWith("repair=")) {
+                this.repair = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+            } else if (argument.startsWith("quarantine=")) {
+                this.quarantineFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("budget=")) {
+                this.orphanBudget = (long) parsePositiveInt(argument) << 20; 
+            } else if (argument.startsWith("json=")) {
+                this.jsonFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("csv=")) {
+                this.csvFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("codelists=")) {
+                this.selectedCodelists = new TreeSet<>();
+                for (String clCode : argument.substring(argument.indexOf("=")+1).split(",")) {
+                    if (!clCode.trim().isEmpty()) {
+                        this.selectedCodelists.add(clCode.trim());
+                    }
+                }
+            } else if (argument.startsWith("validate=")) {
+                this.schemaFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("format=")) {
+                String format = argument.substring(argument.indexOf("=")+1);
+                if (!"pretty".equalsIgnoreCase(format) && !"compact".equalsIgnoreCase(format)) {
+                    invalidCommandLineExit("Invalid format, pretty or compact is required: " + argument);
+                }
+                this.compact = "compact".equalsIgnoreCase(format); 
+            } else if (argument.startsWith("gzip=")) {
+                this.gzip = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+            } else if (argument.startsWith("async=")) {
+                this.async = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+            } else if (argument.startsWith("columnar=")) {
+                this.columnar = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+            } else if (argument.startsWith("prev=")) {
+                this.prevTxtFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("prevdate=")) {
+                this.prevPkgDate = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("report=")) {
+                this.reportFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("cache=")) {
+                this.cacheDir = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("metrics=")) {
+                this.metricsFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("batch=")) {
+                this.batchSource = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("history=")) {
+                this.historyDir = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("code=")) {
+                this.historyCode = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("watch=")) {
+                this.watchDir = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("status=")) {
+                this.statusFileName = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("pattern=")) {
+                this.namePattern = argument.substring(argument.indexOf("=")+1); 
+            } else if (argument.startsWith("reverse=")) {
+                this.reverse = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+            } else if (argument.startsWith("verify=")) {
+                this.verify = Boolean.parseBoolean(argument.substring(argument.indexOf("=")+1)); 
+            } else if (argument.startsWith("serve=")) {
+                this.servePort = parsePort(argument); 
+            } else if (argument.startsWith("threads=")) {
+                this.threads = parsePositiveInt(argument); 
             } else if (argument.equals("help")) {
                 usage();
                 System.exit(0);                
@@ -207,20 +1142,213 @@ public class CT2ODM {
     
     /* ensure the cmd line options needed to proceed exist and are valid */
     private void validateCommandLineOptions() {
+        String errorMessage = checkOptions();
+        if (errorMessage != null) {
+            invalidCommandLineExit(errorMessage);
+        }
+    }
+    
+    /* ensure the cmd line options needed to run a batch conversion exist and are valid */
+    private void validateBatchOptions() {
+        File source = new File(this.batchSource);
+        if (!source.exists()) {
+            invalidCommandLineExit("The batch manifest file or directory is not found: " + this.batchSource);
+        }
+        if (source.isDirectory() && (this.odmFileName == null || !(new File(this.odmFileName).isDirectory()))) {
+            invalidCommandLineExit("Invalid ODM output directory. An existing output directory is required to convert a batch directory.");
+        }
+        validateJobOptions("batch mode");
+    }
+
+    /* ensure no option naming an output file of a single conversion is set when converting many packages */
+    private void validateJobOptions(String mode) {
+        if (this.quarantineFileName != null || this.metricsFileName != null || this.jsonFileName != null || this.csvFileName != null) {
+            invalidCommandLineExit("The quarantine, metrics, json, and csv options name the files of a single conversion and are not supported in " + mode + ".");
+        }
+        validateSingleSnapshotOptions(mode);
+        validateNamePattern();
+        validateSharedOptions();
+    }
+
+    /* ensure the options of a Transactional ODM file, which compares two packages, are not set */
+    private void validateSingleSnapshotOptions(String mode) {
+        if (this.prevTxtFileName != null || this.prevPkgDate != null || this.reportFileName != null) {
+            invalidCommandLineExit("The prev, prevdate, and report options are not supported in " + mode + ".");
+        }
+    }
+
+    /* ensure the file name pattern compiles and has the std and date named groups */
+    private void validateNamePattern() {
+        if (this.namePattern == null) {
+            return;
+        }
+        try {
+            Pattern.compile(this.namePattern);
+        } catch (PatternSyntaxException ex) {
+            invalidCommandLineExit("Invalid file name pattern: " + ex.getDescription() + ": " + this.namePattern);
+        }
+        if (!this.namePattern.contains("(?<std>") || !this.namePattern.contains("(?<date>")) {
+            invalidCommandLineExit("Invalid file name pattern, the std and date named groups are required: " + this.namePattern);
+        }
+    }
+
+    /* ensure the cache directory and schema file used by every package exist */
+    private void validateSharedOptions() {
+        if (this.cacheDir != null && !(new File(this.cacheDir).isDirectory())) {
+            invalidCommandLineExit("The package cache directory is not found: " + this.cacheDir);
+        }
+        if (this.schemaFileName != null && !(new File(this.schemaFileName).isFile())) {
+            invalidCommandLineExit("The schema file is not found: " + this.schemaFileName);
+        }
+    }
+
+    /* ensure the cmd line options needed to load a package history exist and are valid */
+    private void validateHistoryOptions() {
+        if (!(new File(this.historyDir).isDirectory())) {
+            invalidCommandLineExit("The history directory is not found: " + this.historyDir);
+        }
+        if (this.standard == null || this.standard.isEmpty()) {
+            invalidCommandLineExit("Missing standard name. The standard name (e.g. SDTM, SEND, CDASH, ADaM) is required.");
+        }
+        if (this.pkgDate != null && (this.odmFileName == null || this.odmFileName.isEmpty())) {
+            invalidCommandLineExit("Invalid ODM file name. A valid ODM file name is required to write a package from the history.");
+        }
+        if (this.pkgDate == null && this.historyCode == null) {
+            invalidCommandLineExit("A package date to write or a C-code to query is required with history.");
+        }
+        validateSingleSnapshotOptions("history mode");
+        validateNamePattern();
+        validateSharedOptions();
+    }
+
+    /* ensure the cmd line options needed to watch an inbox directory exist and are valid */
+    private void validateWatchOptions() {
+        if (!(new File(this.watchDir).isDirectory())) {
+            invalidCommandLineExit("The inbox directory is not found: " + this.watchDir);
+        }
+        if (this.odmFileName == null || !(new File(this.odmFileName).isDirectory())) {
+            invalidCommandLineExit("Invalid ODM output directory. An existing output directory is required to watch an inbox directory.");
+        }
+        if (this.statusFileName != null) {
+            File parent = new File(this.statusFileName).getAbsoluteFile().getParentFile();
+            if (parent == null || !parent.isDirectory()) {
+                invalidCommandLineExit("The status file directory is not found: " + this.statusFileName);
+            }
+        }
+        validateJobOptions("watch mode");
+    }
+
+    /**
+     * Tests that the command line options needed for a conversion are present and valid
+     * @return null if the options are valid, otherwise a message describing the first invalid option
+     */
+    String checkOptions() {
         if (this.txtFileName == null || this.txtFileName.isEmpty() || !(new File(this.txtFileName).isFile())) {
-            invalidCommandLineExit("The controlled terminology text file is not found: " + this.txtFileName);
+            return "The controlled terminology text file is not found: " + this.txtFileName;
         }
         if (this.odmFileName == null || this.odmFileName.isEmpty()) {
-            invalidCommandLineExit("Invalid ODM file name. A valid ODM file name is required.");
+            return "Invalid ODM file name. A valid ODM file name is required.";
         }
         if (this.pkgDate == null || !isValidPackageDate()) {
-            invalidCommandLineExit("Invalid package date. The package date of the input file is required (YYYY-MM-DD).");
+            return "Invalid package date. The package date of the input file is required (YYYY-MM-DD).";
         }
         if (this.standard == null || this.standard.isEmpty()) {
-            invalidCommandLineExit("Missing standard name. The standard name (e.g. SDTM, SEND, CDASH, ADaM) is required.");
+            return "Missing standard name. The standard name (e.g. SDTM, SEND, CDASH, ADaM) is required.";
+        }
+        if (this.prevTxtFileName != null && !(new File(this.prevTxtFileName).isFile())) {
+            return "The previous controlled terminology text file is not found: " + this.prevTxtFileName;
+        }
+        if (this.prevTxtFileName == null && (this.prevPkgDate != null || this.reportFileName != null)) {
+            return "The prevdate and report options require prev, the previous controlled terminology text file.";
+        }
+        if (this.cacheDir != null && !(new File(this.cacheDir).isDirectory())) {
+            return "The package cache directory is not found: " + this.cacheDir;
+        }
+        if (this.schemaFileName != null && !(new File(this.schemaFileName).isFile())) {
+            return "The schema file is not found: " + this.schemaFileName;
         }
+        if (this.prevPkgDate != null && !this.prevPkgDate.matches("\\d{4}-[01]\\d-[0-3]\\d")) {
+            return "Invalid previous package date. The previous package date must be in YYYY-MM-DD format.";
+        }
+        return null;
     }
-    
+
+    /* ensure the cmd line options needed to reverse or verify a CT-XML file exist and are valid */
+    private void validateRoundTripOptions() {
+        if (this.reverse && this.verify) {
+            invalidCommandLineExit("Only one of reverse and verify may be set.");
+        }
+        if (this.odmFileName == null || this.odmFileName.isEmpty() || !(new File(this.odmFileName).isFile())) {
+            invalidCommandLineExit("The CT-XML file is not found: " + this.odmFileName);
+        }
+        if (this.txtFileName == null || this.txtFileName.isEmpty()) {
+            invalidCommandLineExit("Invalid text file name. A valid text file name is required.");
+        }
+        if (this.verify && !(new File(this.txtFileName).isFile())) {
+            invalidCommandLineExit("The controlled terminology text file is not found: " + this.txtFileName);
+        }
+    }
+
+    /* ensure the cmd line options needed to serve lookups exist and are valid */
+    private void validateServeOptions() {
+        if (this.txtFileName == null || this.txtFileName.isEmpty() || !(new File(this.txtFileName).isFile())) {
+            invalidCommandLineExit("The controlled terminology text file is not found: " + this.txtFileName);
+        }
+        if (this.cacheDir != null && !(new File(this.cacheDir).isDirectory())) {
+            invalidCommandLineExit("The package cache directory is not found: " + this.cacheDir);
+        }
+    }
+
+    /* load the text file and serve lookups until the process is stopped */
+    private void runLookupServer() {
+        try {
+            CTLookup lookup = new CTLookup(ProcessTxtFile(this.txtFileName));
+            final LookupServer server = new LookupServer(lookup, this.servePort, this.threads);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    server.stop();
+                }
+            });
+            System.out.println("Serving " + lookup.getCodelistCount() + " code lists and " + lookup.getTermCount()
+                    + " terms from " + this.txtFileName + " on http://localhost:" + server.getPort() + "/");
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+            System.exit(0);
+        }
+    }
+
+    /* parses a port number command line option value */
+    private int parsePort(String argument) {
+        String value = argument.substring(argument.indexOf("=")+1);
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 0 && n <= 65535) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        invalidCommandLineExit("Invalid value, a port number from 0 to 65535 is required: " + argument);
+        return 0;
+    }
+
+    /* parses a positive integer command line option value */
+    private int parsePositiveInt(String argument) {
+        String value = argument.substring(argument.indexOf("=")+1);
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        invalidCommandLineExit("Invalid value, a positive integer is required: " + argument);
+        return 0;
+    }
+
     /* tests for a valid package date */
     private boolean isValidPackageDate() {
         Boolean isValid = Boolean.TRUE;
@@ -246,6 +1374,62 @@ public class CT2ODM {
     /* print the usage directions that include the command-line arguments */
     private void usage() {
         System.out.println("Usage: java -jar ct2odm.jar txt=<text CT file> odm=<ODM CT file> "
-                + "std=<standard> date=<package date> ver=<schema version>");        
+                + "std=<standard> date=<package date> ver=<schema version> stream=<true|false> parallel=<true|false> threads=<count> columnar=<true|false> "
+                + "repair=<true|false> quarantine=<quarantine report file> budget=<MB> json=<JSON file> csv=<CSV file> codelists=<C-code list> validate=<schema file> format=<pretty|compact> gzip=<true|false> async=<true|false> prev=<previous text CT file> prevdate=<previous package date> report=<change report file> cache=<cache directory> metrics=<JSON metrics file>");
+        System.out.println("Batch usage: java -jar ct2odm.jar batch=<manifest file or text CT directory> "
+                + "odm=<ODM output directory> pattern=<file name regex> threads=<count> ver=<schema version> stream=<true|false> validate=<schema file> "
+                + "parallel=<true|false> columnar=<true|false> repair=<true|false> budget=<MB> codelists=<C-code list> format=<pretty|compact> gzip=<true|false> async=<true|false> cache=<cache directory>");
+        System.out.println("History usage: java -jar ct2odm.jar history=<text CT directory> std=<standard> date=<package date> odm=<ODM CT file> "
+                + "code=<C-code> pattern=<file name regex> ver=<schema version> stream=<true|false> cache=<cache directory>");
+        System.out.println("Watch usage: java -jar ct2odm.jar watch=<inbox directory> odm=<ODM output directory> status=<JSON status file> "
+                + "pattern=<file name regex> threads=<count> ver=<schema version> stream=<true|false> validate=<schema file> "
+                + "parallel=<true|false> columnar=<true|false> repair=<true|false> budget=<MB> codelists=<C-code list> format=<pretty|compact> gzip=<true|false> async=<true|false> cache=<cache directory>");
+        System.out.println("Reverse usage: java -jar ct2odm.jar reverse=true odm=<ODM CT file> txt=<text CT file to write>");
+        System.out.println("Verify usage: java -jar ct2odm.jar verify=true odm=<ODM CT file> txt=<text CT file> report=<difference report file> columnar=<true|false>");
+        System.out.println("Lookup service usage: java -jar ct2odm.jar txt=<text CT file> serve=<port> threads=<count> columnar=<true|false> cache=<cache directory>");        
+    }
+
+    /* writes the ODM file as an emitter of the parsed package */
+    private final class OdmEmitter implements PackageEmitter {
+        private final Writer out;
+        private final XMLStreamWriter w;
+
+        private OdmEmitter(Writer out) {
+            this.out = out;
+            this.w = new OdmStreamWriter(out, 0, CT2ODM.this.compact);
+        }
+
+        @Override
+        public void start() throws IOException {
+            try {
+                writeOdmHeader(this.w);
+            } catch (XMLStreamException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public void write(Codelist cl) throws IOException {
+            try {
+                writeCodeList(this.w, cl);
+            } catch (XMLStreamException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            try {
+                this.w.writeEndDocument();
+                this.w.flush();
+            } catch (XMLStreamException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
     }
 }
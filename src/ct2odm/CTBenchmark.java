@@ -0,0 +1,172 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.TreeMap;
+import org.jdom2.Document;
+
+/**
+ * CTBenchmark measures the parse, tree build, and serialize phases of a conversion
+ * separately. Each phase is run for a number of warmup iterations followed by measured
+ * iterations, and the throughput and allocation rate of the measured iterations are
+ * reported so performance changes can be compared against a fixed baseline.
+ * @author Sam Hume swhume@gmail.com
+ */
+class CTBenchmark {
+    private String txtFileName;
+    private double scale = 1;
+    private int warmup = 5;
+    private int iterations = 10;
+    private long inputBytes;
+    private long outputChars;
+
+    /**
+     * main
+     * @param args - the command line arguments are:
+     * "txt=txt-file" text file to benchmark; generated from scale when it does not exist
+     * "scale=factor" size of the generated package relative to SDTM (defaults to 1)
+     * "warmup=count" warmup iterations per phase (defaults to 5)
+     * "iterations=count" measured iterations per phase (defaults to 10)
+     */
+    public static void main(String[] args) {
+        CTBenchmark bench = new CTBenchmark();
+        try {
+            for (String argument : args) {
+                String value = argument.substring(argument.indexOf("=")+1);
+                if (argument.startsWith("txt=")) {
+                    bench.txtFileName = value;
+                } else if (argument.startsWith("scale=")) {
+                    bench.scale = Double.parseDouble(value);
+                } else if (argument.startsWith("warmup=")) {
+                    bench.warmup = Integer.parseInt(value);
+                } else if (argument.startsWith("iterations=")) {
+                    bench.iterations = Integer.parseInt(value);
+                } else {
+                    System.out.println("Unknown argument in " + CTBenchmark.class.getName() + ": " + argument);
+                    System.exit(0);
+                }
+            }
+            bench.run();
+        } catch (NumberFormatException | IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /* generate the input if needed and benchmark each phase */
+    private void run() throws IOException {
+        File txt = this.txtFileName == null
+                ? new File(System.getProperty("java.io.tmpdir"), "ct2odm-bench-scale-" + this.scale + ".txt")
+                : new File(this.txtFileName);
+        if (!txt.isFile()) {
+            new CTPackageGenerator().setScale(this.scale).write(txt.getPath());
+        }
+        this.inputBytes = txt.length();
+        final CT2ODM ct2odm = new CT2ODM(txt.getPath(), null, "SDTM", "2015-12-18", "1.1.1", false);
+        final TreeMap<String, Codelist> pkg = ct2odm.ProcessTxtFile(txt.getPath());
+        ct2odm.buildDocument(pkg);
+        CountingWriter sink = new CountingWriter();
+        ct2odm.writeDocument(sink);
+        this.outputChars = sink.count;
+        System.out.println(String.format("Input %s: %.1f MB, %d rows; output %.1f MB",
+                txt.getName(), this.inputBytes / 1048576.0, ct2odm.getRowCount(), this.outputChars / 1048576.0));
+        System.out.println(String.format("%-10s %10s %10s %10s %12s %12s", "phase", "ms/op", "ops/s", "MB/s", "alloc MB/op", "alloc MB/s"));
+        measure("parse", this.inputBytes, new Phase() {
+            @Override
+            public void run() throws IOException {
+                ct2odm.ProcessTxtFile(txt.getPath());
+            }
+        });
+        measure("build", this.inputBytes, new Phase() {
+            @Override
+            public void run() {
+                ct2odm.buildDocument(pkg);
+            }
+        });
+        measure("serialize", this.outputChars, new Phase() {
+            @Override
+            public void run() throws IOException {
+                ct2odm.writeDocument(new CountingWriter());
+            }
+        });
+        measure("stream", this.outputChars, new Phase() {
+            @Override
+            public void run() throws IOException {
+                ct2odm.streamOdmFile(pkg, new CountingWriter());
+            }
+        });
+    }
+
+    /* run a phase for the warmup and measured iterations and print its throughput and allocation rate */
+    private void measure(String name, long bytesPerOp, Phase phase) throws IOException {
+        for (int i = 0; i < this.warmup; i++) {
+            phase.run();
+        }
+        long allocStart = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < this.iterations; i++) {
+            phase.run();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long alloc = allocatedBytes() - allocStart;
+        System.out.println(String.format("%-10s %10.1f %10.2f %10.1f %12.1f %12.1f", name,
+                seconds * 1000 / this.iterations, this.iterations / seconds,
+                bytesPerOp * (double) this.iterations / 1048576.0 / seconds,
+                alloc < 0 ? Double.NaN : alloc / 1048576.0 / this.iterations,
+                alloc < 0 ? Double.NaN : alloc / 1048576.0 / seconds));
+    }
+
+    /* returns the bytes allocated by the current thread, or -1 if the JVM does not report it */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /* a benchmarked phase of the conversion */
+    private interface Phase {
+        void run() throws IOException;
+    }
+
+    /* a Writer that discards its output and counts the characters written */
+    private static final class CountingWriter extends Writer {
+        private long count = 0;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            this.count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            this.count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * CTLookup is a read-only query API over a loaded CT package. The code lists and terms
+ * are indexed in hash maps by code list C-code, term C-code, submission value (exact and
+ * case-folded), and synonym (case-folded). The indexes are built once in the constructor
+ * and never modified, so a CTLookup may be shared by any number of threads without
+ * locking.
+ * @author Sam Hume swhume@gmail.com
+ */
+public final class CTLookup {
+    private final Map<String, Codelist> codelists;
+    private final Map<String, Map<String, Term>> termsBySubVal = new HashMap<>();
+    private final Map<String, Map<String, Term>> termsByFoldedSubVal = new HashMap<>();
+    private final Map<String, List<Match>> byTermCode = new HashMap<>();
+    private final Map<String, List<Match>> bySubVal = new HashMap<>();
+    private final Map<String, List<Match>> byFoldedSubVal = new HashMap<>();
+    private final Map<String, List<Match>> bySynonym = new HashMap<>();
+    private final int termCount;
+
+    /**
+     * CTLookup constructor indexes the code lists of a parsed CT package
+     * @param pkg the code lists keyed by C-code
+     */
+    public CTLookup(Map<String, Codelist> pkg) {
+        Map<String, Codelist> cls = new HashMap<>(pkg.size() * 2);
+        int count = 0;
+        for (Codelist cl : pkg.values()) {
+            cls.put(cl.getCode(), cl);
+            Map<String, Term> exact = new HashMap<>(cl.getTermCount() * 2);
+            Map<String, Term> folded = new HashMap<>(cl.getTermCount() * 2);
+            for (Term t : cl.getTerms()) {
+                Match m = new Match(cl, t);
+                exact.put(t.getSubmissionValue(), t);
+                folded.putIfAbsent(fold(t.getSubmissionValue()), t);
+                add(this.byTermCode, t.getCode(), m);
+                add(this.bySubVal, t.getSubmissionValue(), m);
+                add(this.byFoldedSubVal, fold(t.getSubmissionValue()), m);
+                for (String s : t.getSynonyms()) {
+                    add(this.bySynonym, fold(s.trim()), m);
+                }
+                count++;
+            }
+            this.termsBySubVal.put(cl.getCode(), exact);
+            this.termsByFoldedSubVal.put(cl.getCode(), folded);
+        }
+        this.codelists = cls;
+        this.termCount = count;
+    }
+
+    /**
+     * Loads a CT package from an NCI EVS tab delimited text file and indexes it
+     * @param txtFileName path and file name of the tab delimited text file
+     * @return the lookup over the loaded package
+     * @throws IOException if the text file cannot be read or has invalid content
+     */
+    public static CTLookup load(String txtFileName) throws IOException {
+        return new CTLookup(new CT2ODM().ProcessTxtFile(txtFileName));
+    }
+
+    /**
+     * Returns a code list by its C-code
+     * @param clCode the code list C-code
+     * @return the code list, or null if it is not in the package
+     */
+    public Codelist getCodelist(String clCode) {
+        return this.codelists.get(clCode);
+    }
+
+    /**
+     * Returns all code lists in the package
+     * @return the unmodifiable collection of code lists
+     */
+    public Collection<Codelist> getCodelists() {
+        return Collections.unmodifiableCollection(this.codelists.values());
+    }
+
+    /**
+     * Returns the term of a code list with a submission value
+     * @param clCode the code list C-code
+     * @param subVal the CDISC submission value, compared case-sensitively
+     * @return the term, or null if the code list has no such term
+     */
+    public Term findTerm(String clCode, String subVal) {
+        Map<String, Term> terms = this.termsBySubVal.get(clCode);
+        return terms == null ? null : terms.get(subVal);
+    }
+
+    /**
+     * Returns the term of a code list with a submission value, ignoring case
+     * @param clCode the code list C-code
+     * @param subVal the CDISC submission value, compared case-insensitively
+     * @return the term, or null if the code list has no such term
+     */
+    public Term findTermIgnoreCase(String clCode, String subVal) {
+        Map<String, Term> terms = this.termsByFoldedSubVal.get(clCode);
+        return terms == null || subVal == null ? null : terms.get(fold(subVal));
+    }
+
+    /**
+     * Tests if a value is a submission value of a code list
+     * @param clCode the code list C-code
+     * @param subVal the submitted value, compared case-sensitively
+     * @return true if the code list contains a term with the submission value
+     */
+    public boolean isValid(String clCode, String subVal) {
+        return findTerm(clCode, subVal) != null;
+    }
+
+    /**
+     * Returns each code list term with a term C-code; a term may be used by several code lists
+     * @param code the term C-code
+     * @return the unmodifiable list of matches, empty if the code is not found
+     */
+    public List<Match> findByTermCode(String code) {
+        return get(this.byTermCode, code);
+    }
+
+    /**
+     * Returns each code list term with a submission value
+     * @param subVal the CDISC submission value, compared case-sensitively
+     * @return the unmodifiable list of matches, empty if the value is not found
+     */
+    public List<Match> findBySubmissionValue(String subVal) {
+        return get(this.bySubVal, subVal);
+    }
+
+    /**
+     * Returns each code list term with a submission value, ignoring case
+     * @param subVal the CDISC submission value, compared case-insensitively
+     * @return the unmodifiable list of matches, empty if the value is not found
+     */
+    public List<Match> findBySubmissionValueIgnoreCase(String subVal) {
+        return subVal == null ? Collections.<Match>emptyList() : get(this.byFoldedSubVal, fold(subVal));
+    }
+
+    /**
+     * Returns each code list term with a CDISC synonym, ignoring case and surrounding spaces
+     * @param synonym the CDISC synonym
+     * @return the unmodifiable list of matches, empty if the synonym is not found
+     */
+    public List<Match> findBySynonym(String synonym) {
+        return synonym == null ? Collections.<Match>emptyList() : get(this.bySynonym, fold(synonym.trim()));
+    }
+
+    /**
+     * Returns the number of code lists in the package
+     * @return the code list count
+     */
+    public int getCodelistCount() {
+        return this.codelists.size();
+    }
+
+    /**
+     * Returns the number of code list terms in the package
+     * @return the term count
+     */
+    public int getTermCount() {
+        return this.termCount;
+    }
+
+    /* returns the case-folded form of a value used by the case-insensitive indexes */
+    private static String fold(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    /* adds a match to a multi-valued index */
+    private static void add(Map<String, List<Match>> index, String key, Match m) {
+        List<Match> matches = index.get(key);
+        if (matches == null) {
+            matches = new ArrayList<>(1);
+            index.put(key, matches);
+        }
+        matches.add(m);
+    }
+
+    /* returns the unmodifiable matches of a key in a multi-valued index */
+    private static List<Match> get(Map<String, List<Match>> index, String key) {
+        List<Match> matches = index.get(key);
+        return matches == null ? Collections.<Match>emptyList() : Collections.unmodifiableList(matches);
+    }
+
+    /**
+     * Match is a term found by a lookup together with the code list that contains it
+     */
+    public static final class Match {
+        private final Codelist codelist;
+        private final Term term;
+
+        private Match(Codelist codelist, Term term) {
+            this.codelist = codelist;
+            this.term = term;
+        }
+
+        /**
+         * Returns the code list containing the term
+         * @return the code list
+         */
+        public Codelist getCodelist() {
+            return this.codelist;
+        }
+
+        /**
+         * Returns the matched term
+         * @return the term
+         */
+        public Term getTerm() {
+            return this.term;
+        }
+    }
+}
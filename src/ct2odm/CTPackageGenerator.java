@@ -0,0 +1,202 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * CTPackageGenerator writes synthetic NCI EVS tab delimited CT text files for
+ * benchmarking. The content is deterministic for a given seed and configuration.
+ * A scale of 1 is roughly the size of a current SDTM package. Like the NCI files, a term
+ * shared by several code lists appears at most once in each of them.
+ * @author Sam Hume swhume@gmail.com
+ */
+class CTPackageGenerator {
+    private static final String[] WORDS = {"acute", "adverse", "analysis", "anatomical", "assessment", "baseline",
+        "blood", "body", "cardiac", "category", "cell", "clinical", "concentration", "condition", "count", "disease",
+        "dose", "event", "examination", "finding", "frequency", "function", "imaging", "laboratory", "level", "location",
+        "measurement", "method", "normal", "organ", "pressure", "procedure", "result", "route", "sample", "score",
+        "specimen", "status", "study", "subject", "test", "therapy", "tissue", "treatment", "unit", "vital"};
+    private int codelists = 900;
+    private int termsPerCodelist = 40;
+    private double synonymsPerTerm = 0.6;
+    private int definitionLength = 120;
+    private double sharedTermRate = 0.05;
+    private long seed = 20151218L;
+
+    /**
+     * main
+     * @param args - the command line arguments are:
+     * "txt=txt-file" path and file name of the text file to write
+     * "scale=factor" multiplies the default SDTM-sized code list count (defaults to 1)
+     * "codelists=count" number of code lists
+     * "terms=count" average number of terms per code list
+     * "synonyms=density" average number of synonyms per term
+     * "defn=length" average definition length in characters
+     * "seed=number" random seed
+     */
+    public static void main(String[] args) {
+        CTPackageGenerator gen = new CTPackageGenerator();
+        String txtFileName = null;
+        try {
+            for (String argument : args) {
+                String value = argument.substring(argument.indexOf("=")+1);
+                if (argument.startsWith("txt=")) {
+                    txtFileName = value;
+                } else if (argument.startsWith("scale=")) {
+                    gen.setScale(Double.parseDouble(value));
+                } else if (argument.startsWith("codelists=")) {
+                    gen.codelists = Integer.parseInt(value);
+                } else if (argument.startsWith("terms=")) {
+                    gen.termsPerCodelist = Integer.parseInt(value);
+                } else if (argument.startsWith("synonyms=")) {
+                    gen.synonymsPerTerm = Double.parseDouble(value);
+                } else if (argument.startsWith("defn=")) {
+                    gen.definitionLength = Integer.parseInt(value);
+                } else if (argument.startsWith("seed=")) {
+                    gen.seed = Long.parseLong(value);
+                } else {
+                    System.out.println("Unknown argument in " + CTPackageGenerator.class.getName() + ": " + argument);
+                    System.exit(0);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            System.out.println("Invalid numeric argument: " + ex.getMessage());
+            System.exit(0);
+        }
+        if (txtFileName == null) {
+            System.out.println("Usage: java -cp ct2odm.jar ct2odm.CTPackageGenerator txt=<text CT file> scale=<factor> "
+                    + "codelists=<count> terms=<count> synonyms=<density> defn=<length> seed=<number>");
+            System.exit(0);
+        }
+        try {
+            gen.write(txtFileName);
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Sets the number of code lists as a multiple of the SDTM-sized default
+     * @param scale the size multiplier
+     * @return this generator
+     */
+    public CTPackageGenerator setScale(double scale) {
+        this.codelists = (int) Math.max(1, Math.round(900 * scale));
+        return this;
+    }
+
+    /**
+     * Writes the synthetic CT package to a text file
+     * @param txtFileName path and file name of the text file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String txtFileName) throws IOException {
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(Paths.get(txtFileName), StandardCharsets.UTF_8))) {
+            write(out);
+        }
+    }
+
+    /**
+     * Writes the synthetic CT package to a writer
+     * @param out the writer the tab delimited text is written to
+     * @throws IOException if the content cannot be written
+     */
+    public void write(Writer out) throws IOException {
+        Random rnd = new Random(this.seed);
+        List<String> shared = new ArrayList<>();
+        int nextCode = 100000;
+        out.write(CTTextReader.HEADER + "\n");
+        for (int c = 0; c < this.codelists; c++) {
+            String clCode = "C" + nextCode++;
+            String name = capitalize(words(rnd, 2 + rnd.nextInt(3)));
+            out.write(clCode + "\t\t" + (rnd.nextBoolean() ? "Yes" : "No") + "\t" + name + "\t"
+                    + submissionValue(rnd, 6) + "\t" + name + "\t" + definition(rnd) + "\t" + "CDISC SDTM " + name + " Terminology\n");
+            int terms = 1 + rnd.nextInt(2 * this.termsPerCodelist);
+            Set<String> used = new HashSet<>();
+            for (int t = 0; t < terms; t++) {
+                String term = null;
+                if (!shared.isEmpty() && rnd.nextDouble() < this.sharedTermRate) {
+                    term = shared.get(rnd.nextInt(shared.size()));
+                    if (used.contains(term)) {
+                        term = null;
+                    }
+                }
+                if (term == null) {
+                    String value = submissionValue(rnd, 3 + rnd.nextInt(10));
+                    term = "C" + nextCode++ + "\t" + clCode + "\t\t" + name + "\t" + value + "\t" + synonyms(rnd)
+                            + "\t" + definition(rnd) + "\t" + capitalize(words(rnd, 1 + rnd.nextInt(4)));
+                    if (shared.size() < 1000 && rnd.nextDouble() < this.sharedTermRate) {
+                        shared.add(term);
+                    }
+                }
+                used.add(term);
+                int tab = term.indexOf('\t', term.indexOf('\t') + 1);
+                out.write(term.substring(0, term.indexOf('\t') + 1) + clCode + term.substring(tab) + "\n");
+            }
+        }
+    }
+
+    /* returns a semicolon separated list of synonyms following the configured density */
+    private String synonyms(Random rnd) {
+        int n = (int) this.synonymsPerTerm + (rnd.nextDouble() < this.synonymsPerTerm % 1 ? 1 : 0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "" : "; ").append(capitalize(words(rnd, 1 + rnd.nextInt(3))));
+        }
+        return sb.toString();
+    }
+
+    /* returns a definition with an average length of definitionLength characters */
+    private String definition(Random rnd) {
+        int target = this.definitionLength / 2 + rnd.nextInt(this.definitionLength + 1);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < target) {
+            sb.append(sb.length() == 0 ? "" : " ").append(WORDS[rnd.nextInt(WORDS.length)]);
+        }
+        return capitalize(sb.toString()) + ".";
+    }
+
+    /* returns an upper case submission value of up to maxLength characters */
+    private static String submissionValue(Random rnd, int maxLength) {
+        String w = WORDS[rnd.nextInt(WORDS.length)].toUpperCase();
+        return w.length() > maxLength ? w.substring(0, maxLength) : w;
+    }
+
+    /* returns n random words separated by spaces */
+    private static String words(Random rnd, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "" : " ").append(WORDS[rnd.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /* upper cases the first character */
+    private static String capitalize(String s) {
+        return s.isEmpty() ? s : Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+}
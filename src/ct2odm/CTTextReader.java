@@ -0,0 +1,430 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CTTextReader reads the rows of an NCI EVS tab delimited CT text file. The file is
+ * memory-mapped and scanned for tab and line boundaries without regular expressions,
+ * and only the fields kept by Codelist and Term are decoded (as UTF-8) into Strings.
+ * When a StringPool is given the decoded fields are looked up in the pool so repeated
+ * values share one String.
+ * <p>
+ * In repair mode a row split over several lines by stray line feeds is stitched back
+ * together, joining the lines with a space, and control characters other than tab are
+ * removed. A row that still has fewer than 8 fields is rejected with its line number
+ * and reading continues with the next row.
+ * @author Sam Hume swhume@gmail.com
+ */
+class CTTextReader implements Closeable {
+    /** number of columns in the NCI EVS CT text file */
+    static final int FIELD_COUNT = 8;
+    /** the column header row of the NCI EVS text file */
+    static final String HEADER = "Code\tCodelist Code\tCodelist Extensible (Yes/No)\tCodelist Name"
+            + "\tCDISC Submission Value\tCDISC Synonym(s)\tCDISC Definition\tNCI Preferred Term";
+    private static final byte TAB = '\t';
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buf;
+    private final int limit;
+    private final StringPool pool;
+    private final String[] row = new String[FIELD_COUNT];
+    private final int[] fieldStart = new int[FIELD_COUNT];
+    private final int[] fieldEnd = new int[FIELD_COUNT];
+    private byte[] scratch = new byte[512];
+    private byte[] repairBuf = new byte[1024];
+    private int pos = 0;
+    private int end;
+    private int rowStart = 0;
+    private int fieldCount;
+    private int tabCount;
+    private boolean hasControlChars;
+    private int lineNumber = 0;
+    private int rowLineNumber = 0;
+    private boolean repair = false;
+    private int repairedCount = 0;
+    private final List<RejectedRow> rejected = new ArrayList<>();
+
+    /**
+     * CTTextReader constructor memory-maps the CT text file
+     * @param fileName path and file name of the tab delimited text file
+     * @throws IOException if the file cannot be opened or is too large to map
+     */
+    public CTTextReader(String fileName) throws IOException {
+        this(fileName, null);
+    }
+
+    /**
+     * CTTextReader constructor memory-maps the CT text file and pools the decoded fields
+     * @param fileName path and file name of the tab delimited text file
+     * @param pool the package string pool, or null to not pool the fields
+     * @throws IOException if the file cannot be opened or is too large to map
+     */
+    public CTTextReader(String fileName, StringPool pool) throws IOException {
+        this.pool = pool;
+        this.file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = this.file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The controlled terminology text file is too large to map: " + fileName);
+            }
+            this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.limit = this.buf.limit();
+            this.end = this.limit;
+        } catch (IOException ex) {
+            this.file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Sets whether broken rows are repaired. When repair is off a broken row is returned
+     * as read, with a field count below FIELD_COUNT.
+     * @param repair true to stitch split rows, remove control characters, and reject unrepairable rows
+     */
+    public void setRepair(boolean repair) {
+        this.repair = repair;
+    }
+
+    /**
+     * Restricts reading to the rows in a byte range of the file, such as the rows of a
+     * code list found in a CodelistIndex
+     * @param start byte offset of the first row in the range
+     * @param end byte offset following the last row in the range
+     * @param lineNumber the 1-based line number of the first row in the range
+     */
+    public void setRange(int start, int end, int lineNumber) {
+        this.pos = start;
+        this.end = Math.min(end, this.limit);
+        this.lineNumber = lineNumber - 1;
+    }
+
+    /**
+     * Skips the next line, such as the column header row
+     * @return true if a line was skipped, false at the end of the file
+     */
+    public boolean skipLine() {
+        if (this.pos >= this.limit) {
+            return false;
+        }
+        int i = this.pos;
+        while (i < this.limit && this.buf.get(i) != LF && this.buf.get(i) != CR) {
+            i++;
+        }
+        this.pos = nextLineStart(i);
+        this.lineNumber++;
+        return true;
+    }
+
+    /**
+     * Reads the next non-empty row. The returned array is reused by the next call.
+     * Codelist rows have all fields set; term rows leave the unused Codelist
+     * Extensible and Codelist Name fields null.
+     * @return the row fields, or null at the end of the file
+     */
+    public String[] nextRow() {
+        while (true) {
+            int lineStart;
+            int lineEnd;
+            do {
+                if (this.pos >= this.end) {
+                    return null;
+                }
+                lineStart = this.pos;
+                lineEnd = scanLine(lineStart);
+                this.lineNumber++;
+                this.pos = nextLineStart(lineEnd);
+            } while (lineEnd == lineStart);
+            this.rowLineNumber = this.lineNumber;
+            this.rowStart = lineStart;
+            if (!this.repair || (this.tabCount >= FIELD_COUNT - 1 && !this.hasControlChars)) {
+                decodeRow(null);
+                return this.row;
+            }
+            if (repairRow(lineStart, lineEnd)) {
+                return this.row;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows stitched together or stripped of control characters
+     * @return the repaired row count
+     */
+    public int getRepairedCount() {
+        return this.repairedCount;
+    }
+
+    /**
+     * Returns the rows that could not be repaired
+     * @return the rejected rows in file order
+     */
+    public List<RejectedRow> getRejectedRows() {
+        return Collections.unmodifiableList(this.rejected);
+    }
+
+    /* stitches the continuation lines of a broken row, strips its control characters, and
+       splits it into fields; returns false if the row is rejected */
+    private boolean repairRow(int lineStart, int lineEnd) {
+        int tabs = this.tabCount;
+        int len = appendClean(0, lineStart, lineEnd);
+        int lines = 1;
+        while (tabs < FIELD_COUNT - 1 && this.pos < this.end) {
+            int nextStart = this.pos;
+            int nextEnd = scanLine(nextStart);
+            if (nextEnd > nextStart && (tabs + this.tabCount > FIELD_COUNT - 1
+                    || (this.tabCount >= FIELD_COUNT - 1 && startsWithCode(nextStart, nextEnd)))) {
+                // the next line is the start of another row
+                break;
+            }
+            this.lineNumber++;
+            this.pos = nextLineStart(nextEnd);
+            if (nextEnd > nextStart) {
+                if (len > 0 && this.repairBuf[len - 1] != ' ') {
+                    len = append(len, (byte) ' ');
+                }
+                len = appendClean(len, nextStart, nextEnd);
+                tabs += this.tabCount;
+                lines++;
+            }
+        }
+        if (tabs < FIELD_COUNT - 1) {
+            this.rejected.add(new RejectedRow(this.rowLineNumber, "Incomplete row: " + (tabs + 1) + " of " + FIELD_COUNT
+                    + " fields in " + lines + (lines == 1 ? " line" : " lines"), new String(this.repairBuf, 0, len, StandardCharsets.UTF_8)));
+            return false;
+        }
+        splitRepaired(len);
+        decodeRow(this.repairBuf);
+        this.repairedCount++;
+        return true;
+    }
+
+    /* appends the bytes of a line to the repair buffer without its control characters other than tab */
+    private int appendClean(int len, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = this.buf.get(i);
+            if (b == TAB || !isControl(b)) {
+                len = append(len, b);
+            }
+        }
+        return len;
+    }
+
+    /* appends a byte to the repair buffer */
+    private int append(int len, byte b) {
+        if (len == this.repairBuf.length) {
+            byte[] grown = new byte[len * 2];
+            System.arraycopy(this.repairBuf, 0, grown, 0, len);
+            this.repairBuf = grown;
+        }
+        this.repairBuf[len] = b;
+        return len + 1;
+    }
+
+    /* records the field boundaries of the repaired row in the repair buffer */
+    private void splitRepaired(int len) {
+        int count = 0;
+        this.fieldStart[0] = 0;
+        for (int i = 0; i < len && count < FIELD_COUNT; i++) {
+            if (this.repairBuf[i] == TAB) {
+                this.fieldEnd[count++] = i;
+                if (count < FIELD_COUNT) {
+                    this.fieldStart[count] = i + 1;
+                }
+            }
+        }
+        if (count < FIELD_COUNT) {
+            this.fieldEnd[count] = len;
+        }
+        this.fieldCount = Math.min(count + 1, FIELD_COUNT);
+    }
+
+    /* tests if a line starts with a C-code followed by a tab, as each row does */
+    private boolean startsWithCode(int start, int end) {
+        if (end - start < 3 || this.buf.get(start) != 'C') {
+            return false;
+        }
+        int i = start + 1;
+        while (i < end && this.buf.get(i) >= '0' && this.buf.get(i) <= '9') {
+            i++;
+        }
+        return i > start + 1 && i < end && this.buf.get(i) == TAB;
+    }
+
+    /* decodes the fields of the current row from the mapped file, or from src when it is not null */
+    private void decodeRow(byte[] src) {
+        boolean isCodelist = this.fieldCount < 2 || this.fieldStart[1] == this.fieldEnd[1];
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if (i >= this.fieldCount || (!isCodelist && (i == 2 || i == 3))) {
+                this.row[i] = null;
+            } else if (src != null) {
+                this.row[i] = decode(src, this.fieldStart[i], this.fieldEnd[i] - this.fieldStart[i]);
+            } else {
+                this.row[i] = decode(this.fieldStart[i], this.fieldEnd[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of fields found in the last row read
+     * @return the field count of the current row
+     */
+    public int getFieldCount() {
+        return this.fieldCount;
+    }
+
+    /**
+     * Returns the 1-based line number of the first line of the last row read
+     * @return the line number of the current row
+     */
+    public int getLineNumber() {
+        return this.rowLineNumber;
+    }
+
+    /**
+     * Returns the byte offset of the first line of the last row read
+     * @return the offset of the current row in the file
+     */
+    public int getRowStart() {
+        return this.rowStart;
+    }
+
+    /**
+     * Returns the byte offset following the line terminator of the last line of the last row read
+     * @return the offset of the line that follows the current row
+     */
+    public int getRowEnd() {
+        return this.pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    /* records the field boundaries of the line starting at start and returns the line end offset */
+    private int scanLine(int start) {
+        int count = 0;
+        boolean control = false;
+        this.fieldStart[0] = start;
+        int i = start;
+        for (; i < this.limit; i++) {
+            byte b = this.buf.get(i);
+            if (b == LF || b == CR) {
+                break;
+            } else if (isControl(b) && b != TAB) {
+                control = true;
+            } else if (b == TAB) {
+                if (count < FIELD_COUNT) {
+                    this.fieldEnd[count] = i;
+                }
+                count++;
+                if (count < FIELD_COUNT) {
+                    this.fieldStart[count] = i + 1;
+                }
+            }
+        }
+        if (count < FIELD_COUNT) {
+            this.fieldEnd[count] = i;
+        }
+        this.fieldCount = Math.min(count + 1, FIELD_COUNT);
+        this.tabCount = count;
+        this.hasControlChars = control;
+        return i;
+    }
+
+    /* tests for the ASCII control characters, which are not allowed in CT text */
+    private static boolean isControl(byte b) {
+        return (b >= 0 && b < 0x20) || b == 0x7F;
+    }
+
+    /* returns the offset following the line terminator at lineEnd */
+    private int nextLineStart(int lineEnd) {
+        if (lineEnd < this.limit && this.buf.get(lineEnd) == CR) {
+            lineEnd++;
+        }
+        if (lineEnd < this.limit && this.buf.get(lineEnd) == LF) {
+            lineEnd++;
+        }
+        return lineEnd;
+    }
+
+    /* decodes a UTF-8 field from the mapped file */
+    private String decode(int start, int end) {
+        int len = end - start;
+        if (len == 0) {
+            return "";
+        }
+        if (len > this.scratch.length) {
+            this.scratch = new byte[Math.max(len, this.scratch.length * 2)];
+        }
+        this.buf.position(start);
+        this.buf.get(this.scratch, 0, len);
+        return decode(this.scratch, 0, len);
+    }
+
+    /* decodes a UTF-8 field from a byte array */
+    private String decode(byte[] src, int off, int len) {
+        if (len == 0) {
+            return "";
+        }
+        if (this.pool != null) {
+            return this.pool.intern(src, off, len);
+        }
+        return new String(src, off, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * RejectedRow is a row that could not be repaired
+     */
+    static final class RejectedRow {
+        private final int lineNumber;
+        private final String reason;
+        private final String content;
+
+        RejectedRow(int lineNumber, String reason, String content) {
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+            this.content = content;
+        }
+
+        public int getLineNumber() {
+            return this.lineNumber;
+        }
+
+        public String getReason() {
+            return this.reason;
+        }
+
+        /**
+         * Returns the row content with its lines joined and control characters removed
+         * @return the row content
+         */
+        public String getContent() {
+            return this.content;
+        }
+    }
+}
@@ -16,17 +16,27 @@
 package ct2odm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 
 /**
- * Codelist represents a CDISC Controlled Terminology Code List
+ * Codelist represents a CDISC Controlled Terminology Code List. Code lists and their
+ * terms are only built within the ct2odm package, so they are read-only to other code.
  * @author Sam Hume swhume@gmail.com
  */
-class Codelist {
-    private final XMLNamespace ns = new XMLNamespace();
+public class Codelist {
+    private static final XMLNamespace NS = XMLNamespace.getInstance();
     private List<Term> termList = new ArrayList<>();
+    private TermStore store;
+    private int[] storedTerms;
+    private int storedTermCount = 0;
     private final String clCode;
     private final String clExtensible;
     private final String clName;
@@ -39,7 +49,7 @@ class Codelist {
      * Codelist constructor takes a string array of data from the CT delimited text file 
      * @param row a String array containing the row of delimited text file CT
      */
-    public Codelist(String[] row) {
+    Codelist(String[] row) {
         this.clCode = row[0];        // Code
         this.clExtensible = row[2];  // Codelist Extensible (Yes/No)
         this.clName = row[3];        // Codelist Name
@@ -54,21 +64,21 @@ class Codelist {
      * @return Element an ODM CodeList element
      */
     public Element generateCodeListElement() {
-        Element cl = new Element("CodeList", this.ns.getOdmNamespace());
+        Element cl = new Element("CodeList", NS.getOdmNamespace());
         cl.setAttribute(new Attribute("OID", "CL." + this.clCode + "." + this.clSubVal));
         cl.setAttribute(new Attribute("Name", this.clName));
         cl.setAttribute(new Attribute("DataType", "text"));
-        cl.setAttribute(new Attribute("ExtCodeID", this.clCode, this.ns.getNciNamespace()));
-        cl.setAttribute(new Attribute("CodeListExtensible", this.clExtensible, this.ns.getNciNamespace()));
+        cl.setAttribute(new Attribute("ExtCodeID", this.clCode, NS.getNciNamespace()));
+        cl.setAttribute(new Attribute("CodeListExtensible", this.clExtensible, NS.getNciNamespace()));
         cl.addContent(generateDescription());
         return cl;
     }
     
     /* Creates the Description element that will be added as a child of CodeList */
     private Element generateDescription() {
-        Element desc = new Element("Description", this.ns.getOdmNamespace());
-        Element transText = new Element("TranslatedText", this.ns.getOdmNamespace());
-        transText.setAttribute(new Attribute("lang", "en", this.ns.getXmlNamespace()));
+        Element desc = new Element("Description", NS.getOdmNamespace());
+        Element transText = new Element("TranslatedText", NS.getOdmNamespace());
+        transText.setAttribute(new Attribute("lang", "en", NS.getXmlNamespace()));
         transText.addContent(this.clDefn);
         desc.addContent(transText);
         return desc;
@@ -78,18 +88,159 @@ class Codelist {
      * AddTerm adds a Term object to the list of terms that are part of a CodeList
      * @param t Term object
      */
-    public void AddTerm(Term t) {
+    void AddTerm(Term t) {
         if (t == null) 
             throw new IllegalArgumentException("Null terms cannot be added to the code list: " + this.clCode);
         this.termList.add(t);
     }
 
+    /**
+     * Adds a term held in a TermStore to the terms that are part of a CodeList. A code
+     * list holds either Term objects or stored terms from a single TermStore.
+     * @param termStore the TermStore holding the term
+     * @param index the index of the term in the store
+     */
+    void addStoredTerm(TermStore termStore, int index) {
+        if (this.store == null) {
+            this.store = termStore;
+            this.storedTerms = new int[8];
+        } else if (this.store != termStore) {
+            throw new IllegalArgumentException("Terms from different term stores cannot be added to the code list: " + this.clCode);
+        }
+        if (this.storedTermCount == this.storedTerms.length) {
+            this.storedTerms = Arrays.copyOf(this.storedTerms, this.storedTermCount * 2);
+        }
+        this.storedTerms[this.storedTermCount++] = index;
+    }
+
+    /**
+     * Moves the last terms added to the start of the term list, keeping their order.
+     * Used to place terms that were read before their code list row first.
+     * @param count the number of terms added last to move
+     */
+    void moveTermsToFront(int count) {
+        if (this.store == null) {
+            Collections.rotate(this.termList, count);
+        } else {
+            int[] moved = Arrays.copyOfRange(this.storedTerms, this.storedTermCount - count, this.storedTermCount);
+            System.arraycopy(this.storedTerms, 0, this.storedTerms, count, this.storedTermCount - count);
+            System.arraycopy(moved, 0, this.storedTerms, 0, count);
+        }
+    }
+
+    /**
+     * Returns the number of terms in the code list
+     * @return the term count
+     */
+    public int getTermCount() {
+        return this.store == null ? this.termList.size() : this.storedTermCount;
+    }
+
     /** 
-     * Returns the list of term objects for a code list
+     * Returns the list of term objects for a code list. Stored terms are returned as
+     * Term views created as the list is iterated.
      * @return termList as Iterable list of code list terms 
      */
     public Iterable<Term> getTerms() {
-        return this.termList;
+        if (this.store == null) {
+            return Collections.unmodifiableList(this.termList);
+        }
+        return new Iterable<Term>() {
+            @Override
+            public Iterator<Term> iterator() {
+                return new Iterator<Term>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.next < Codelist.this.storedTermCount;
+                    }
+
+                    @Override
+                    public Term next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return Codelist.this.store.term(Codelist.this.storedTerms[this.next++]);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the NCI C-code of the code list
+     * @return clCode the code list C-code
+     */
+    public String getCode() {
+        return this.clCode;
+    }
+
+    /**
+     * Returns the name of the code list
+     * @return clName the code list name
+     */
+    public String getName() {
+        return this.clName;
+    }
+
+    /**
+     * Returns the CDISC submission value of the code list
+     * @return clSubVal the code list submission value
+     */
+    public String getSubmissionValue() {
+        return this.clSubVal;
+    }
+
+    /**
+     * Returns whether the code list is extensible
+     * @return clExtensible the code list extensible flag (Yes/No)
+     */
+    public String getExtensible() {
+        return this.clExtensible;
+    }
+
+    /**
+     * Returns the CDISC synonym of the code list
+     * @return clSynonym the code list synonym
+     */
+    public String getSynonym() {
+        return this.clSynonym;
+    }
+
+    /**
+     * Returns the CDISC definition of the code list
+     * @return clDefn the code list definition
+     */
+    public String getDefinition() {
+        return this.clDefn;
+    }
+
+    /**
+     * Returns the NCI preferred term of the code list
+     * @return clPrefTerm the code list preferred term
+     */
+    public String getPreferredTerm() {
+        return this.clPrefTerm;
+    }
+
+    /**
+     * Returns the code list as a row of the CT delimited text file
+     * @return a String array containing the code list row
+     */
+    public String[] toRow() {
+        return new String[] {this.clCode, "", this.clExtensible, this.clName, this.clSubVal,
+            this.clSynonym, this.clDefn, this.clPrefTerm};
+    }
+
+    /**
+     * Returns a hash of the code list fields, excluding its terms, used to detect
+     * changes between CT packages
+     * @return the 64-bit content hash
+     */
+    public long contentHash() {
+        return new ContentHash().add(this.clExtensible).add(this.clName).add(this.clSubVal)
+                .add(this.clSynonym).add(this.clDefn).add(this.clPrefTerm).value();
     }
 
     /**
@@ -97,7 +248,7 @@ class Codelist {
      * @return elSubVal returns the submission value element for the code list
      */
     public Element generateSubVal() {
-        Element elSubVal = new Element("CDISCSubmissionValue", this.ns.getNciNamespace());    
+        Element elSubVal = new Element("CDISCSubmissionValue", NS.getNciNamespace());    
         elSubVal.addContent(this.clSubVal);
         return elSubVal;           
     }
@@ -107,7 +258,7 @@ class Codelist {
      * @return elSynonym as the synonyms element for the code list
      */
     public Element generateSynonym() {
-        Element elSynonym = new Element("CDISCSynonym", this.ns.getNciNamespace());    
+        Element elSynonym = new Element("CDISCSynonym", NS.getNciNamespace());    
         elSynonym.addContent(this.clSynonym);
         return elSynonym;           
     }
@@ -117,8 +268,52 @@ class Codelist {
      * @return elPrefTerm as the preferred term element for the code list
      */
     public Element generatePreferredTerm() {
-        Element elPrefTerm = new Element("PreferredTerm", this.ns.getNciNamespace());    
+        Element elPrefTerm = new Element("PreferredTerm", NS.getNciNamespace());    
         elPrefTerm.addContent(this.clPrefTerm);
         return elPrefTerm;           
     }
+
+    /**
+     * Write the start of an ODM CodeList element and its Description to a stream
+     * @param w XMLStreamWriter the CodeList content is written to
+     * @throws XMLStreamException if the content cannot be written
+     */
+    public void writeCodeListStart(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartElement(NS.getOdmNamespace().getPrefix(), "CodeList", NS.getOdmNamespace().getURI());
+        w.writeAttribute("OID", "CL." + this.clCode + "." + this.clSubVal);
+        w.writeAttribute("Name", this.clName);
+        w.writeAttribute("DataType", "text");
+        writeNciAttribute(w, "ExtCodeID", this.clCode);
+        writeNciAttribute(w, "CodeListExtensible", this.clExtensible);
+        w.writeStartElement(NS.getOdmNamespace().getPrefix(), "Description", NS.getOdmNamespace().getURI());
+        w.writeStartElement(NS.getOdmNamespace().getPrefix(), "TranslatedText", NS.getOdmNamespace().getURI());
+        w.writeAttribute(NS.getXmlNamespace().getPrefix(), NS.getXmlNamespace().getURI(), "lang", "en");
+        w.writeCharacters(this.clDefn);
+        w.writeEndElement();
+        w.writeEndElement();
+    }
+
+    /**
+     * Write the submission value, synonym, and preferred term elements and end the CodeList element
+     * @param w XMLStreamWriter the CodeList content is written to
+     * @throws XMLStreamException if the content cannot be written
+     */
+    public void writeCodeListEnd(XMLStreamWriter w) throws XMLStreamException {
+        writeNciElement(w, "CDISCSubmissionValue", this.clSubVal);
+        writeNciElement(w, "CDISCSynonym", this.clSynonym);
+        writeNciElement(w, "PreferredTerm", this.clPrefTerm);
+        w.writeEndElement();
+    }
+
+    /* writes an attribute in the nciodm namespace */
+    private void writeNciAttribute(XMLStreamWriter w, String name, String value) throws XMLStreamException {
+        w.writeAttribute(NS.getNciNamespace().getPrefix(), NS.getNciNamespace().getURI(), name, value);
+    }
+
+    /* writes a text-only element in the nciodm namespace */
+    private void writeNciElement(XMLStreamWriter w, String name, String text) throws XMLStreamException {
+        w.writeStartElement(NS.getNciNamespace().getPrefix(), name, NS.getNciNamespace().getURI());
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
 }
@@ -0,0 +1,237 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CodelistIndex is a sidecar index of an NCI EVS text file that maps each code list
+ * C-code to the byte ranges of its code list and term rows, so the rows of a few code
+ * lists can be read without scanning the rest of the file. Adjacent rows share one
+ * range; the terms of a code list split across the file have a range for each run of
+ * rows. Rows rejected by the reader belong to no range, so the index also keeps them for
+ * the quarantine report. The index records the size and modification time of the text
+ * file and whether broken rows were repaired, and is only used while all three still
+ * match. It is replaced atomically when it is written, named like a package snapshot.
+ * <pre>
+ * header    magic "CT2ODMIX", version, repair flag, source size, source mtime, code list count
+ * codelists for each code list: C-code (modified UTF-8), range count, and for each range
+ *           its start offset, end offset, and the line number of its first row
+ * rejected  count, then the line number, reason, and content (UTF-8 byte length and bytes) of each rejected row
+ * </pre>
+ * @author Sam Hume swhume@gmail.com
+ */
+class CodelistIndex {
+    private static final byte[] MAGIC = "CT2ODMIX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private final File indexFile;
+    private final File sourceFile;
+    private final boolean repair;
+    private TreeMap<String, int[]> ranges = new TreeMap<>();
+    private List<CTTextReader.RejectedRow> rejectedRows = new ArrayList<>();
+
+    /**
+     * CodelistIndex constructor takes the index directory and the source text file
+     * @param indexDir directory the index is kept in, or null to only build it in memory
+     * @param sourceFileName path and file name of the tab delimited text file
+     * @param repair true if broken rows are repaired when the text file is read
+     * @throws IOException if the canonical path of the text file cannot be resolved
+     */
+    public CodelistIndex(String indexDir, String sourceFileName, boolean repair) throws IOException {
+        this.sourceFile = new File(sourceFileName);
+        this.indexFile = indexDir == null ? null : new File(indexDir, PackageCache.cacheFileName(this.sourceFile, ".cli"));
+        this.repair = repair;
+    }
+
+    /**
+     * Loads the index if it exists and matches the source text file
+     * @return true if the index was loaded, false if it is missing, out of date, or not kept in a directory
+     * @throws IOException if the index cannot be read
+     */
+    public boolean load() throws IOException {
+        if (this.indexFile == null || !this.indexFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile), 65536))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION || in.readBoolean() != this.repair
+                    || in.readLong() != this.sourceFile.length() || in.readLong() != this.sourceFile.lastModified()) {
+                return false;
+            }
+            TreeMap<String, int[]> index = new TreeMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String clCode = in.readUTF();
+                int[] r = new int[in.readInt() * 3];
+                for (int j = 0; j < r.length; j++) {
+                    r[j] = in.readInt();
+                }
+                index.put(clCode, r);
+            }
+            int rejectedCount = in.readInt();
+            List<CTTextReader.RejectedRow> rejected = new ArrayList<>(rejectedCount);
+            for (int i = 0; i < rejectedCount; i++) {
+                int lineNumber = in.readInt();
+                String reason = readString(in);
+                rejected.add(new CTTextReader.RejectedRow(lineNumber, reason, readString(in)));
+            }
+            this.ranges = index;
+            this.rejectedRows = rejected;
+            return true;
+        } catch (EOFException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds the index by reading every row of the source text file
+     * @throws IOException if the text file cannot be read or has a broken row that is not repaired
+     */
+    public void build() throws IOException {
+        Map<String, int[]> index = new HashMap<>();
+        Map<String, Integer> sizes = new HashMap<>();
+        try (CTTextReader f = new CTTextReader(this.sourceFile.getPath())) {
+            f.setRepair(this.repair);
+            f.skipLine();
+            String[] row;
+            while ((row = f.nextRow()) != null) {
+                if (f.getFieldCount() < CTTextReader.FIELD_COUNT) {
+                    throw new IOException("Invalid row content likely due to invalid characters"
+                            + " in the load file in row: " + row[0] + "." + row[1] + " (line " + f.getLineNumber() + ")");
+                }
+                String clCode = row[1] == null || row[1].isEmpty() ? row[0] : row[1];
+                int[] r = index.get(clCode);
+                int n = r == null ? 0 : sizes.get(clCode);
+                if (n > 0 && r[n - 2] == f.getRowStart()) {
+                    r[n - 2] = f.getRowEnd();
+                    continue;
+                }
+                if (r == null) {
+                    r = new int[3];
+                } else if (n == r.length) {
+                    r = Arrays.copyOf(r, n * 2);
+                }
+                r[n] = f.getRowStart();
+                r[n + 1] = f.getRowEnd();
+                r[n + 2] = f.getLineNumber();
+                index.put(clCode, r);
+                sizes.put(clCode, n + 3);
+            }
+            this.rejectedRows = new ArrayList<>(f.getRejectedRows());
+        }
+        TreeMap<String, int[]> sorted = new TreeMap<>();
+        for (Map.Entry<String, int[]> e : index.entrySet()) {
+            sorted.put(e.getKey(), Arrays.copyOf(e.getValue(), sizes.get(e.getKey())));
+        }
+        this.ranges = sorted;
+    }
+
+    /**
+     * Writes the index, replacing any existing index. An index not kept in a directory is not written.
+     * @throws IOException if the index cannot be written
+     */
+    public void save() throws IOException {
+        if (this.indexFile == null) {
+            return;
+        }
+        File parent = this.indexFile.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(this.indexFile.getName(), ".tmp", parent);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(this.repair);
+                out.writeLong(this.sourceFile.length());
+                out.writeLong(this.sourceFile.lastModified());
+                out.writeInt(this.ranges.size());
+                for (Map.Entry<String, int[]> e : this.ranges.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeInt(e.getValue().length / 3);
+                    for (int v : e.getValue()) {
+                        out.writeInt(v);
+                    }
+                }
+                out.writeInt(this.rejectedRows.size());
+                for (CTTextReader.RejectedRow r : this.rejectedRows) {
+                    out.writeInt(r.getLineNumber());
+                    writeString(out, r.getReason());
+                    writeString(out, r.getContent());
+                }
+            }
+            Files.move(tmp.toPath(), this.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Returns the byte ranges of the rows of a code list in file order
+     * @param clCode the code list C-code
+     * @return the start offset, end offset, and first line number of each range, or null if the code list is not in the file
+     */
+    public int[] getRanges(String clCode) {
+        return this.ranges.get(clCode);
+    }
+
+    /**
+     * Returns the rows rejected by the reader when the index was built
+     * @return the rejected rows in file order
+     */
+    public List<CTTextReader.RejectedRow> getRejectedRows() {
+        return Collections.unmodifiableList(this.rejectedRows);
+    }
+
+    /**
+     * Returns the number of code lists in the index
+     * @return the code list count
+     */
+    public int getCodelistCount() {
+        return this.ranges.size();
+    }
+
+    /* writes a string as its UTF-8 byte length and bytes */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /* reads a string written as its UTF-8 byte length and bytes */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
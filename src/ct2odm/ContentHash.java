@@ -0,0 +1,58 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+/**
+ * ContentHash computes the 64-bit FNV-1a hash used to compare the content of code lists
+ * and terms across CT packages
+ * @author Sam Hume swhume@gmail.com
+ */
+final class ContentHash {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    private long hash = OFFSET_BASIS;
+
+    /**
+     * Adds a field to the hash; null and empty fields hash differently
+     * @param field the field value
+     * @return this ContentHash
+     */
+    public ContentHash add(String field) {
+        if (field == null) {
+            mix(0xFFFF);
+        } else {
+            for (int i = 0; i < field.length(); i++) {
+                mix(field.charAt(i));
+            }
+        }
+        mix(0xFFFE);  // field separator that cannot appear in the text
+        return this;
+    }
+
+    /**
+     * Returns the hash of the fields added so far
+     * @return the 64-bit hash value
+     */
+    public long value() {
+        return this.hash;
+    }
+
+    /* mixes one 16-bit char into the hash */
+    private void mix(int c) {
+        this.hash = (this.hash ^ (c & 0xFF)) * PRIME;
+        this.hash = (this.hash ^ (c >>> 8)) * PRIME;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * ConversionMetrics records the wall-clock and CPU time of each conversion phase along
+ * with the rows, code lists, and terms converted, the bytes read and written, and the
+ * peak heap used. Each phase is also recorded as a JDK Flight Recorder PhaseEvent when
+ * the JVM supports JFR. The CPU time of a phase is that of the thread that runs it, so it
+ * does not include the async writer, parallel renderer, emitter, or validation threads.
+ * The heap peak is read from the JVM memory pools, which are shared by the whole process,
+ * so it only describes one conversion when no other conversion runs in the same JVM.
+ * @author Sam Hume swhume@gmail.com
+ */
+class ConversionMetrics {
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+    private final String txtFileName;
+    private final List<Phase> phases = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    private long rows;
+    private long codelists;
+    private long terms;
+    private long bytesRead;
+    private long bytesWritten;
+
+    /**
+     * ConversionMetrics constructor takes the text file being converted
+     * @param txtFileName the text file being converted
+     */
+    public ConversionMetrics(String txtFileName) {
+        this.txtFileName = txtFileName;
+    }
+
+    /**
+     * Resets the peak usage of the heap memory pools so the peak of this conversion is
+     * reported. The pools belong to the whole JVM, so this also resets the peak seen by
+     * any other conversion running in the process.
+     */
+    public void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Starts timing a phase of the conversion
+     * @param name the phase name (e.g. parse, build, serialize, flush)
+     * @return the started phase, ended by calling Phase.end
+     */
+    public Phase begin(String name) {
+        Phase p = new Phase(name);
+        this.phases.add(p);
+        return p;
+    }
+
+    /**
+     * Records the size of the converted package
+     * @param rows number of codelist and term rows read
+     * @param codelists number of code lists converted
+     * @param terms number of terms converted
+     */
+    public void setCounts(long rows, long codelists, long terms) {
+        this.rows = rows;
+        this.codelists = codelists;
+        this.terms = terms;
+    }
+
+    /**
+     * Adds to the number of bytes read
+     * @param bytes the bytes read
+     */
+    public void addBytesRead(long bytes) {
+        this.bytesRead += bytes;
+    }
+
+    /**
+     * Adds to the number of bytes written
+     * @param bytes the bytes written
+     */
+    public void addBytesWritten(long bytes) {
+        this.bytesWritten += bytes;
+    }
+
+    /**
+     * Writes the metrics as a JSON summary
+     * @param fileName path and file name of the JSON file
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(String fileName) throws IOException {
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+            out.write(toJson());
+        }
+    }
+
+    /**
+     * Returns the metrics as a JSON summary
+     * @return the JSON summary
+     */
+    public String toJson() {
+        double totalSeconds = (System.nanoTime() - this.startNanos) / 1e9;
+        long parseNanos = 0;
+        long cpuNanos = 0;
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"txt\": ").append(JsonUtil.quote(this.txtFileName)).append(",\n");
+        sb.append("  \"phases\": [");
+        for (int i = 0; i < this.phases.size(); i++) {
+            Phase p = this.phases.get(i);
+            if ("parse".equals(p.name)) {
+                parseNanos += p.wallNanos;
+            }
+            cpuNanos += p.cpuNanos;
+            sb.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.ROOT,
+                    "    {\"name\": %s, \"wallMillis\": %.3f, \"cpuMillis\": %.3f}",
+                    JsonUtil.quote(p.name), p.wallNanos / 1e6, p.cpuNanos / 1e6));
+        }
+        sb.append("\n  ],\n");
+        sb.append(String.format(Locale.ROOT, "  \"totalWallMillis\": %.3f,\n", totalSeconds * 1000));
+        sb.append(String.format(Locale.ROOT, "  \"totalCpuMillis\": %.3f,\n", cpuNanos / 1e6));
+        sb.append("  \"rows\": ").append(this.rows).append(",\n");
+        sb.append(String.format(Locale.ROOT, "  \"rowsPerSecond\": %.1f,\n", parseNanos > 0 ? this.rows / (parseNanos / 1e9) : 0.0));
+        sb.append("  \"codelists\": ").append(this.codelists).append(",\n");
+        sb.append("  \"terms\": ").append(this.terms).append(",\n");
+        sb.append("  \"bytesRead\": ").append(this.bytesRead).append(",\n");
+        sb.append("  \"bytesWritten\": ").append(this.bytesWritten).append(",\n");
+        sb.append("  \"peakHeapBytes\": ").append(peakHeapBytes()).append("\n");
+        return sb.append("}\n").toString();
+    }
+
+    /* returns the sum of the peak usage of the heap memory pools of the process */
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /* returns the CPU time of the current thread, or 0 if it is not supported */
+    private static long threadCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    /* tests if the JDK Flight Recorder event API is present */
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Phase is a timed phase of the conversion. The CPU time is that of the thread that
+     * started the phase.
+     */
+    final class Phase {
+        private final String name;
+        private final long wallStart;
+        private final long cpuStart;
+        private final PhaseEvent event;
+        private long wallNanos;
+        private long cpuNanos;
+
+        private Phase(String name) {
+            this.name = name;
+            if (JFR_AVAILABLE) {
+                this.event = new PhaseEvent();
+                this.event.begin();
+            } else {
+                this.event = null;
+            }
+            this.cpuStart = threadCpuNanos();
+            this.wallStart = System.nanoTime();
+        }
+
+        /**
+         * Ends the phase, recording its times and committing its JFR event
+         */
+        public void end() {
+            this.wallNanos = System.nanoTime() - this.wallStart;
+            this.cpuNanos = threadCpuNanos() - this.cpuStart;
+            if (this.event != null) {
+                this.event.end();
+                if (this.event.shouldCommit()) {
+                    this.event.phase = this.name;
+                    this.event.txtFileName = ConversionMetrics.this.txtFileName;
+                    this.event.cpuTime = this.cpuNanos;
+                    this.event.commit();
+                }
+            }
+        }
+    }
+}
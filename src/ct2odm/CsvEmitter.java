@@ -0,0 +1,91 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * CsvEmitter writes a CT package as a flattened RFC 4180 CSV file with one row per term
+ * that repeats the fields of its code list. A code list without terms is written as a
+ * single row with empty term fields.
+ * @author Sam Hume swhume@gmail.com
+ */
+class CsvEmitter implements PackageEmitter {
+    private static final String HEADER = "Codelist Code,Codelist Name,Codelist Extensible (Yes/No),Codelist Submission Value,"
+            + "Code,CDISC Submission Value,CDISC Synonym(s),CDISC Definition,NCI Preferred Term";
+    private static final String LINE_SEPARATOR = "\r\n";
+    private final Writer out;
+
+    /**
+     * CsvEmitter constructor
+     * @param out the Writer the CSV rows are written to
+     */
+    public CsvEmitter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void start() throws IOException {
+        this.out.write(HEADER + LINE_SEPARATOR);
+    }
+
+    @Override
+    public void write(Codelist cl) throws IOException {
+        String prefix = field(cl.getCode()) + "," + field(cl.getName()) + "," + field(cl.getExtensible()) + ","
+                + field(cl.getSubmissionValue()) + ",";
+        if (cl.getTermCount() == 0) {
+            this.out.write(prefix + ",,,," + LINE_SEPARATOR);
+            return;
+        }
+        StringBuilder sb = new StringBuilder(512);
+        for (Term t : cl.getTerms()) {
+            sb.setLength(0);
+            sb.append(prefix).append(field(t.getCode())).append(',').append(field(t.getSubmissionValue())).append(',');
+            StringBuilder synonyms = new StringBuilder();
+            for (String s : t.getSynonyms()) {
+                synonyms.append(synonyms.length() == 0 ? "" : "; ").append(s.trim());
+            }
+            sb.append(field(synonyms.toString())).append(',').append(field(t.getDefinition())).append(',')
+                    .append(field(t.getPreferredTerm())).append(LINE_SEPARATOR);
+            this.out.write(sb.toString());
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+
+    /* returns a CSV field, quoted when it contains a comma, quote, or line break */
+    private static String field(String value) {
+        if (value == null) {
+            return "";
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return "\"" + value.replace("\"", "\"\"") + "\"";
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * JsonEmitter writes a CT package as a JSON document with one code list object,
+ * including its terms, per line
+ * @author Sam Hume swhume@gmail.com
+ */
+class JsonEmitter implements PackageEmitter {
+    private final Writer out;
+    private final String standard;
+    private final String pkgDate;
+    private boolean first = true;
+
+    /**
+     * JsonEmitter constructor
+     * @param out the Writer the JSON document is written to
+     * @param standard name of the standard for the CT package (e.g. SDTM)
+     * @param pkgDate CT package date in ISO 8601 format (YYYY-MM-DD)
+     */
+    public JsonEmitter(Writer out, String standard, String pkgDate) {
+        this.out = out;
+        this.standard = standard;
+        this.pkgDate = pkgDate;
+    }
+
+    @Override
+    public void start() throws IOException {
+        this.out.write("{\n  \"standard\": " + JsonUtil.quote(this.standard) + ",\n  \"packageDate\": "
+                + JsonUtil.quote(this.pkgDate) + ",\n  \"codelists\": [");
+    }
+
+    @Override
+    public void write(Codelist cl) throws IOException {
+        this.out.write(this.first ? "\n    " : ",\n    ");
+        this.out.write(JsonUtil.codelist(cl, true));
+        this.first = false;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        this.out.write("\n  ]\n}\n");
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+/**
+ * JsonUtil provides the string quoting and code list and term objects used when writing JSON output
+ * @author Sam Hume swhume@gmail.com
+ */
+final class JsonUtil {
+
+    private JsonUtil() {
+    }
+
+    /**
+     * Returns a code list as a JSON object
+     * @param cl the code list
+     * @param withTerms true to include the terms of the code list
+     * @return the JSON object
+     */
+    static String codelist(Codelist cl, boolean withTerms) {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"code\": ").append(quote(cl.getCode()));
+        sb.append(", \"name\": ").append(quote(cl.getName()));
+        sb.append(", \"submissionValue\": ").append(quote(cl.getSubmissionValue()));
+        sb.append(", \"extensible\": ").append(quote(cl.getExtensible()));
+        sb.append(", \"synonym\": ").append(quote(cl.getSynonym()));
+        sb.append(", \"definition\": ").append(quote(cl.getDefinition()));
+        sb.append(", \"preferredTerm\": ").append(quote(cl.getPreferredTerm()));
+        if (withTerms) {
+            sb.append(", \"terms\": [");
+            boolean first = true;
+            for (Term t : cl.getTerms()) {
+                sb.append(first ? "" : ", ").append(term(t));
+                first = false;
+            }
+            sb.append("]");
+        }
+        return sb.append("}").toString();
+    }
+
+    /**
+     * Returns a term as a JSON object. Each synonym is trimmed of the space that follows the
+     * semicolon separating synonyms in the text file, as in the CSV file.
+     * @param t the term
+     * @return the JSON object
+     */
+    static String term(Term t) {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"code\": ").append(quote(t.getCode()));
+        sb.append(", \"submissionValue\": ").append(quote(t.getSubmissionValue()));
+        sb.append(", \"synonyms\": [");
+        for (int i = 0; i < t.getSynonyms().size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(quote(t.getSynonyms().get(i).trim()));
+        }
+        sb.append("], \"definition\": ").append(quote(t.getDefinition()));
+        sb.append(", \"preferredTerm\": ").append(quote(t.getPreferredTerm()));
+        return sb.append("}").toString();
+    }
+
+    /**
+     * Returns a string as a quoted and escaped JSON string value
+     * @param s the string value
+     * @return the JSON string, or null if s is null
+     */
+    static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
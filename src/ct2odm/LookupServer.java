@@ -0,0 +1,185 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * LookupServer exposes a CTLookup as a small JSON HTTP service on the loopback interface
+ * so several local services can share one loaded package. All requests are GET requests:
+ * <pre>
+ * /codelist?code=C66731                       the code list and its terms
+ * /term?code=C20197                           each code list term with the term C-code
+ * /validate?codelist=C66731&amp;value=M&amp;ignoreCase=true  whether a value is a submission value of a code list
+ * /search?value=male                          each term with the submission value or synonym, ignoring case
+ * </pre>
+ * @author Sam Hume swhume@gmail.com
+ */
+public class LookupServer {
+    private final CTLookup lookup;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * LookupServer constructor binds the service to a loopback port
+     * @param lookup the package lookup to serve
+     * @param port the port to listen on, or 0 for any free port
+     * @param threads number of threads handling requests
+     * @throws IOException if the port cannot be bound
+     */
+    public LookupServer(CTLookup lookup, int port, int threads) throws IOException {
+        this.lookup = lookup;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/codelist", new Handler() {
+            @Override
+            String respond(Map<String, String> params) {
+                Codelist cl = LookupServer.this.lookup.getCodelist(params.get("code"));
+                return cl == null ? null : JsonUtil.codelist(cl, true);
+            }
+        });
+        this.server.createContext("/term", new Handler() {
+            @Override
+            String respond(Map<String, String> params) {
+                List<CTLookup.Match> matches = LookupServer.this.lookup.findByTermCode(params.get("code"));
+                return matches.isEmpty() ? null : matchesJson(matches);
+            }
+        });
+        this.server.createContext("/validate", new Handler() {
+            @Override
+            String respond(Map<String, String> params) {
+                String clCode = params.get("codelist");
+                if (LookupServer.this.lookup.getCodelist(clCode) == null) {
+                    return null;
+                }
+                Term t = Boolean.parseBoolean(params.get("ignoreCase"))
+                        ? LookupServer.this.lookup.findTermIgnoreCase(clCode, params.get("value"))
+                        : LookupServer.this.lookup.findTerm(clCode, params.get("value"));
+                return "{\"valid\": " + (t != null) + ", \"term\": " + (t == null ? "null" : JsonUtil.term(t)) + "}";
+            }
+        });
+        this.server.createContext("/search", new Handler() {
+            @Override
+            String respond(Map<String, String> params) {
+                String value = params.get("value");
+                return "{\"submissionValue\": " + matchesJson(LookupServer.this.lookup.findBySubmissionValueIgnoreCase(value))
+                        + ", \"synonym\": " + matchesJson(LookupServer.this.lookup.findBySynonym(value)) + "}";
+            }
+        });
+    }
+
+    /**
+     * Starts accepting requests
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * Stops accepting requests and releases the request threads
+     */
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+    /**
+     * Returns the port the service is bound to
+     * @return the port number
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /* returns lookup matches as a JSON array of code list and term pairs */
+    private static String matchesJson(List<CTLookup.Match> matches) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < matches.size(); i++) {
+            CTLookup.Match m = matches.get(i);
+            sb.append(i == 0 ? "" : ", ").append("{\"codelist\": ").append(JsonUtil.codelist(m.getCodelist(), false))
+                    .append(", \"term\": ").append(JsonUtil.term(m.getTerm())).append("}");
+        }
+        return sb.append("]").toString();
+    }
+
+    /* parses the query string of a request into its decoded parameters */
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    /* a GET request handler returning a JSON response, or 404 when respond returns null */
+    private abstract static class Handler implements HttpHandler {
+
+        abstract String respond(Map<String, String> params);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                int status;
+                String body;
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    status = 405;
+                    body = "{\"error\": \"only GET is supported\"}";
+                } else {
+                    Map<String, String> params;
+                    try {
+                        params = parseQuery(exchange.getRequestURI().getRawQuery());
+                    } catch (IllegalArgumentException ex) {
+                        params = null;
+                    }
+                    body = params == null ? null : respond(params);
+                    status = params == null ? 400 : body == null ? 404 : 200;
+                    if (body == null) {
+                        body = params == null ? "{\"error\": \"invalid query\"}" : "{\"error\": \"not found\"}";
+                    }
+                }
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * OdmCTReader reads a CT-XML file written by CT2ODM with a StAX stream reader and
+ * rebuilds one Codelist, with its Terms, at a time, so a package of any size is read
+ * in the memory needed for its largest code list. GZIP compressed files are detected
+ * and read directly.
+ * @author Sam Hume swhume@gmail.com
+ */
+class OdmCTReader implements Closeable {
+    private static final XMLNamespace NS = XMLNamespace.getInstance();
+    private static final String ODM_URI = NS.getOdmNamespace().getURI();
+    private static final String NCI_URI = NS.getNciNamespace().getURI();
+    private final InputStream in;
+    private final XMLStreamReader reader;
+
+    /**
+     * OdmCTReader constructor opens the CT-XML file
+     * @param fileName path and file name of the CT-XML file
+     * @throws IOException if the file cannot be opened
+     */
+    public OdmCTReader(String fileName) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+        try {
+            is.mark(2);
+            int b1 = is.read();
+            int b2 = is.read();
+            is.reset();
+            if (b1 == 0x1f && b2 == 0x8b) {
+                is = new BufferedInputStream(new GZIPInputStream(is, 1 << 16), 1 << 16);
+            }
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            this.reader = factory.createXMLStreamReader(is);
+            this.in = is;
+        } catch (XMLStreamException ex) {
+            is.close();
+            throw new IOException("Unable to read the CT-XML file " + fileName + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads the next CodeList element of the file
+     * @return the code list with its terms, or null at the end of the file
+     * @throws IOException if the file cannot be read or is not well-formed
+     */
+    public Codelist nextCodelist() throws IOException {
+        try {
+            while (this.reader.hasNext()) {
+                if (this.reader.next() == XMLStreamConstants.START_ELEMENT && isElement(ODM_URI, "CodeList")) {
+                    return readCodelist();
+                }
+            }
+            return null;
+        } catch (XMLStreamException ex) {
+            throw new IOException("Invalid CT-XML content at line " + ex.getLocation().getLineNumber() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.reader.close();
+        } catch (XMLStreamException ex) {
+            // the underlying stream is closed below
+        } finally {
+            this.in.close();
+        }
+    }
+
+    /* reads the CodeList element the reader is positioned on */
+    private Codelist readCodelist() throws XMLStreamException {
+        String[] row = new String[CTTextReader.FIELD_COUNT];
+        row[0] = this.reader.getAttributeValue(NCI_URI, "ExtCodeID");
+        row[1] = "";
+        row[2] = this.reader.getAttributeValue(NCI_URI, "CodeListExtensible");
+        row[3] = this.reader.getAttributeValue(null, "Name");
+        List<Term> terms = new ArrayList<>();
+        while (this.reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isElement(ODM_URI, "EnumeratedItem")) {
+                terms.add(readTerm());
+            } else if (isElement(ODM_URI, "Description")) {
+                row[6] = readTranslatedText();
+            } else if (isElement(NCI_URI, "CDISCSubmissionValue")) {
+                row[4] = this.reader.getElementText();
+            } else if (isElement(NCI_URI, "CDISCSynonym")) {
+                row[5] = this.reader.getElementText();
+            } else if (isElement(NCI_URI, "PreferredTerm")) {
+                row[7] = this.reader.getElementText();
+            } else {
+                skipElement();
+            }
+        }
+        Codelist cl = new Codelist(row);
+        for (Term t : terms) {
+            cl.AddTerm(t);
+        }
+        return cl;
+    }
+
+    /* reads the EnumeratedItem element the reader is positioned on */
+    private Term readTerm() throws XMLStreamException {
+        String code = this.reader.getAttributeValue(NCI_URI, "ExtCodeID");
+        String subVal = this.reader.getAttributeValue(null, "CodedValue");
+        List<String> synonyms = new ArrayList<>(2);
+        String defn = null;
+        String prefTerm = null;
+        while (this.reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isElement(NCI_URI, "CDISCSynonym")) {
+                synonyms.add(this.reader.getElementText());
+            } else if (isElement(NCI_URI, "CDISCDefinition")) {
+                defn = this.reader.getElementText();
+            } else if (isElement(NCI_URI, "PreferredTerm")) {
+                prefTerm = this.reader.getElementText();
+            } else {
+                skipElement();
+            }
+        }
+        return new Term(code, subVal, synonyms, defn, prefTerm);
+    }
+
+    /* reads the text of the TranslatedText child of the Description element the reader is positioned on */
+    private String readTranslatedText() throws XMLStreamException {
+        String text = null;
+        while (this.reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (text == null && isElement(ODM_URI, "TranslatedText")) {
+                text = this.reader.getElementText();
+            } else {
+                skipElement();
+            }
+        }
+        return text;
+    }
+
+    /* skips the element the reader is positioned on, including its content */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = this.reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /* tests if the reader is positioned on an element with the namespace URI and local name */
+    private boolean isElement(String namespaceURI, String localName) {
+        return localName.equals(this.reader.getLocalName()) && namespaceURI.equals(this.reader.getNamespaceURI());
+    }
+}
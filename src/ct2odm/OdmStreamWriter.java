@@ -0,0 +1,519 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * OdmStreamWriter is an XMLStreamWriter that writes XML directly to a Writer using
+ * the same layout as the JDOM XMLOutputter pretty format (two space indent, CRLF
+ * line separators, trimmed text and "&lt;x /&gt;" empty elements) so the streaming
+ * output matches the JDOM output byte-for-byte. In compact mode the layout follows the
+ * JDOM compact format instead (no indent or line separators between elements and
+ * normalized text).
+ * @author Sam Hume swhume@gmail.com
+ */
+class OdmStreamWriter implements XMLStreamWriter {
+    private static final String LINE_SEPARATOR = "\r\n";
+    private static final String INDENT = "  ";
+    private final Writer out;
+    private final int baseDepth;
+    private final boolean compact;
+    private final Deque<OpenElement> stack = new ArrayDeque<>();
+    private final Map<String, String> prefixes = new HashMap<>();
+    private final NamespaceContext namespaceContext = new Bindings();
+    private NamespaceContext rootContext;
+    private boolean startTagOpen = false;
+
+    /**
+     * OdmStreamWriter constructor takes the Writer the XML content is written to
+     * @param out Writer the XML content is written to
+     */
+    public OdmStreamWriter(Writer out) {
+        this(out, 0);
+    }
+
+    /**
+     * OdmStreamWriter constructor for writing a fragment whose top-level elements are
+     * nested at the given depth within a document written by another OdmStreamWriter
+     * @param out Writer the XML fragment is written to
+     * @param baseDepth depth of the fragment's top-level elements in the document
+     */
+    public OdmStreamWriter(Writer out, int baseDepth) {
+        this(out, baseDepth, false);
+    }
+
+    /**
+     * OdmStreamWriter constructor for writing a document or fragment in the pretty or compact layout
+     * @param out Writer the XML content is written to
+     * @param baseDepth depth of the top-level elements in the document; 0 for a document
+     * @param compact true for the JDOM compact format layout, false for the pretty format layout
+     */
+    public OdmStreamWriter(Writer out, int baseDepth, boolean compact) {
+        this.out = out;
+        this.baseDepth = baseDepth;
+        this.compact = compact;
+    }
+
+    /**
+     * Writes an XML fragment created by an OdmStreamWriter at the current element depth
+     * as the next child of the current element
+     * @param fragment XML fragment written by a fragment OdmStreamWriter
+     * @throws XMLStreamException if the fragment cannot be written
+     */
+    public void writeFragment(String fragment) throws XMLStreamException {
+        if (this.stack.isEmpty()) {
+            throw new XMLStreamException("Fragment written outside of the root element");
+        }
+        if (this.startTagOpen) {
+            write(">");
+            this.startTagOpen = false;
+        }
+        this.stack.peek().hasChildren = true;
+        write(fragment);
+    }
+
+    /**
+     * Returns the depth at which the next child of the current element is written
+     * @return the child element depth
+     */
+    public int getChildDepth() {
+        return this.baseDepth + this.stack.size();
+    }
+
+    @Override
+    public void writeStartDocument() throws XMLStreamException {
+        writeStartDocument("UTF-8", "1.0");
+    }
+
+    @Override
+    public void writeStartDocument(String version) throws XMLStreamException {
+        writeStartDocument("UTF-8", version);
+    }
+
+    @Override
+    public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+        write("<?xml version=\"" + version + "\" encoding=\"" + encoding + "\"?>" + LINE_SEPARATOR);
+    }
+
+    @Override
+    public void writeStartElement(String localName) throws XMLStreamException {
+        writeStartElement("", localName, "");
+    }
+
+    @Override
+    public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(lookupPrefix(namespaceURI), localName, namespaceURI);
+    }
+
+    @Override
+    public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        openChild();
+        String qName = qualify(prefix, localName);
+        write("<" + qName);
+        this.stack.push(new OpenElement(qName));
+        this.startTagOpen = true;
+    }
+
+    @Override
+    public void writeEmptyElement(String localName) throws XMLStreamException {
+        writeStartElement(localName);
+        writeEndElement();
+    }
+
+    @Override
+    public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(namespaceURI, localName);
+        writeEndElement();
+    }
+
+    @Override
+    public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        writeStartElement(prefix, localName, namespaceURI);
+        writeEndElement();
+    }
+
+    @Override
+    public void writeEndElement() throws XMLStreamException {
+        if (this.stack.isEmpty()) {
+            throw new XMLStreamException("No open element to end");
+        }
+        OpenElement e = this.stack.pop();
+        if (e.hasChildren) {
+            newLine(this.baseDepth + this.stack.size());
+            write("</" + e.qName + ">");
+        } else {
+            String text = this.compact ? normalize(e.text) : trim(e.text);
+            if (text.isEmpty()) {
+                write(" />");
+            } else {
+                write(">");
+                write(escapeText(text));
+                write("</" + e.qName + ">");
+            }
+        }
+        this.startTagOpen = false;
+    }
+
+    @Override
+    public void writeEndDocument() throws XMLStreamException {
+        while (!this.stack.isEmpty()) {
+            writeEndElement();
+        }
+        write(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        flush();
+    }
+
+    @Override
+    public void flush() throws XMLStreamException {
+        try {
+            this.out.flush();
+        } catch (IOException ex) {
+            throw new XMLStreamException(ex);
+        }
+    }
+
+    @Override
+    public void writeAttribute(String localName, String value) throws XMLStreamException {
+        writeAttribute("", "", localName, value);
+    }
+
+    @Override
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+        if (!this.startTagOpen) {
+            throw new XMLStreamException("Attribute " + localName + " written outside of a start tag");
+        }
+        write(" " + qualify(prefix, localName) + "=\"" + escapeAttribute(value) + "\"");
+    }
+
+    @Override
+    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+        writeAttribute(lookupPrefix(namespaceURI), namespaceURI, localName, value);
+    }
+
+    @Override
+    public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+        if (prefix == null || prefix.isEmpty() || "xmlns".equals(prefix)) {
+            writeDefaultNamespace(namespaceURI);
+            return;
+        }
+        setPrefix(prefix, namespaceURI);
+        writeAttribute("xmlns", "", prefix, namespaceURI);
+    }
+
+    @Override
+    public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+        setDefaultNamespace(namespaceURI);
+        writeAttribute("", "", "xmlns", namespaceURI);
+    }
+
+    @Override
+    public void writeComment(String data) throws XMLStreamException {
+        openChild();
+        write("<!--" + data + "-->");
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target) throws XMLStreamException {
+        writeProcessingInstruction(target, "");
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+        openChild();
+        write("<?" + target + (data == null || data.isEmpty() ? "" : " " + data) + "?>");
+    }
+
+    @Override
+    public void writeCData(String data) throws XMLStreamException {
+        writeCharacters(data);
+    }
+
+    @Override
+    public void writeDTD(String dtd) throws XMLStreamException {
+        write(dtd + LINE_SEPARATOR);
+    }
+
+    @Override
+    public void writeEntityRef(String name) throws XMLStreamException {
+        throw new XMLStreamException("Entity references are not supported: " + name);
+    }
+
+    @Override
+    public void writeCharacters(String text) throws XMLStreamException {
+        if (this.stack.isEmpty()) {
+            throw new XMLStreamException("Character content written outside of the root element");
+        }
+        if (text != null) {
+            this.stack.peek().text.append(text);
+        }
+    }
+
+    @Override
+    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+        writeCharacters(new String(text, start, len));
+    }
+
+    @Override
+    public String getPrefix(String uri) throws XMLStreamException {
+        return this.namespaceContext.getPrefix(uri);
+    }
+
+    @Override
+    public void setPrefix(String prefix, String uri) throws XMLStreamException {
+        this.prefixes.put(uri, prefix);
+    }
+
+    @Override
+    public void setDefaultNamespace(String uri) throws XMLStreamException {
+        this.prefixes.put(uri, "");
+    }
+
+    @Override
+    public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+        this.rootContext = context;
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        return this.namespaceContext;
+    }
+
+    @Override
+    public Object getProperty(String name) throws IllegalArgumentException {
+        throw new IllegalArgumentException("Unsupported property: " + name);
+    }
+
+    /* close the parent start tag, if needed, and start a new indented line for a child node */
+    private void openChild() throws XMLStreamException {
+        if (this.stack.isEmpty()) {
+            if (this.baseDepth > 0) {
+                newLine(this.baseDepth);
+            }
+            return;
+        }
+        OpenElement parent = this.stack.peek();
+        if (this.startTagOpen) {
+            write(">");
+            this.startTagOpen = false;
+        }
+        parent.hasChildren = true;
+        newLine(this.baseDepth + this.stack.size());
+    }
+
+    /* starts a new line indented for the given element depth; nothing is written in compact mode */
+    private void newLine(int depth) throws XMLStreamException {
+        if (!this.compact) {
+            write(LINE_SEPARATOR);
+            indent(depth);
+        }
+    }
+
+    /* returns the prefix bound to the namespace URI */
+    private String lookupPrefix(String namespaceURI) throws XMLStreamException {
+        String prefix = getPrefix(namespaceURI);
+        if (prefix == null) {
+            throw new XMLStreamException("No prefix bound to namespace: " + namespaceURI);
+        }
+        return prefix;
+    }
+
+    /* returns the qualified name for the prefix and local name */
+    private static String qualify(String prefix, String localName) {
+        return (prefix == null || prefix.isEmpty()) ? localName : prefix + ":" + localName;
+    }
+
+    /* writes the indent for the given element depth */
+    private void indent(int depth) throws XMLStreamException {
+        for (int i = 0; i < depth; i++) {
+            write(INDENT);
+        }
+    }
+
+    /* writes a string to the underlying writer */
+    private void write(String s) throws XMLStreamException {
+        try {
+            this.out.write(s);
+        } catch (IOException ex) {
+            throw new XMLStreamException(ex);
+        }
+    }
+
+    /* trims leading and trailing XML whitespace as done by the JDOM TRIM text mode */
+    static String trim(CharSequence text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && isXmlWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && isXmlWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.subSequence(start, end).toString();
+    }
+
+    /* collapses each run of XML whitespace to one space and trims the result as done by the JDOM NORMALIZE text mode */
+    static String normalize(CharSequence text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isXmlWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /* tests for the whitespace characters defined by XML */
+    private static boolean isXmlWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /* escapes element text content the same way as the JDOM XMLOutputter */
+    static String escapeText(String text) {
+        StringBuilder sb = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String esc;
+            switch (c) {
+                case '<': esc = "&lt;"; break;
+                case '>': esc = "&gt;"; break;
+                case '&': esc = "&amp;"; break;
+                case '\r': esc = "&#xD;"; break;
+                case '\n': esc = LINE_SEPARATOR; break;
+                default: esc = null;
+            }
+            sb = appendEscaped(sb, text, i, c, esc);
+        }
+        return sb == null ? text : sb.toString();
+    }
+
+    /* escapes attribute values the same way as the JDOM XMLOutputter */
+    static String escapeAttribute(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String esc;
+            switch (c) {
+                case '<': esc = "&lt;"; break;
+                case '>': esc = "&gt;"; break;
+                case '"': esc = "&quot;"; break;
+                case '&': esc = "&amp;"; break;
+                case '\r': esc = "&#xD;"; break;
+                case '\t': esc = "&#x9;"; break;
+                case '\n': esc = "&#xA;"; break;
+                default: esc = null;
+            }
+            sb = appendEscaped(sb, value, i, c, esc);
+        }
+        return sb == null ? value : sb.toString();
+    }
+
+    /* lazily creates the escaped copy of a string once the first escaped character is found */
+    private static StringBuilder appendEscaped(StringBuilder sb, String s, int i, char c, String esc) {
+        if (esc != null) {
+            if (sb == null) {
+                sb = new StringBuilder(s.length() + 16);
+                sb.append(s, 0, i);
+            }
+            sb.append(esc);
+        } else if (sb != null) {
+            sb.append(c);
+        }
+        return sb;
+    }
+
+    /* the namespace context of the prefixes bound by the writer, falling back to the predefined xml and
+       xmlns prefixes and then to the root context set with setNamespaceContext */
+    private final class Bindings implements NamespaceContext {
+        @Override
+        public String getNamespaceURI(String prefix) {
+            if (prefix == null) {
+                throw new IllegalArgumentException("The prefix must not be null");
+            }
+            for (Map.Entry<String, String> e : OdmStreamWriter.this.prefixes.entrySet()) {
+                if (prefix.equals(e.getValue())) {
+                    return e.getKey();
+                }
+            }
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                return XMLConstants.XML_NS_URI;
+            } else if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+                return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+            } else if (OdmStreamWriter.this.rootContext != null) {
+                return OdmStreamWriter.this.rootContext.getNamespaceURI(prefix);
+            }
+            return XMLConstants.NULL_NS_URI;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            if (namespaceURI == null) {
+                throw new IllegalArgumentException("The namespace URI must not be null");
+            }
+            String prefix = OdmStreamWriter.this.prefixes.get(namespaceURI);
+            if (prefix != null) {
+                return prefix;
+            } else if (XMLConstants.XML_NS_URI.equals(namespaceURI)) {
+                return XMLConstants.XML_NS_PREFIX;
+            } else if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespaceURI)) {
+                return XMLConstants.XMLNS_ATTRIBUTE;
+            } else if (OdmStreamWriter.this.rootContext != null) {
+                return OdmStreamWriter.this.rootContext.getPrefix(namespaceURI);
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            String prefix = getPrefix(namespaceURI);
+            return prefix == null ? Collections.<String>emptyIterator() : Collections.singletonList(prefix).iterator();
+        }
+    }
+
+    /* an element whose end tag has not been written yet */
+    private static final class OpenElement {
+        private final String qName;
+        private final StringBuilder text = new StringBuilder();
+        private boolean hasChildren = false;
+
+        private OpenElement(String qName) {
+            this.qName = qName;
+        }
+    }
+}
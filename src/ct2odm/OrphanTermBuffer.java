@@ -0,0 +1,295 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * OrphanTermBuffer holds the term rows read before the row of their code list. The
+ * orphan terms are kept in memory by code list C-code until their code list is read.
+ * When their estimated size goes over the memory budget they are written to a temporary
+ * file as a run sorted by code list C-code and read order, and the runs are merged once
+ * the whole text file has been read, so unordered input is read with bounded heap.
+ * @author Sam Hume swhume@gmail.com
+ */
+class OrphanTermBuffer implements Closeable {
+    private static final int ROW_OVERHEAD = 96;
+    private static final int FIELD_OVERHEAD = 48;
+    private final long budget;
+    private final Map<String, List<Orphan>> pending = new HashMap<>();
+    private final List<File> runs = new ArrayList<>();
+    private long pendingBytes = 0;
+    private long sequence = 0;
+    private long spilledCount = 0;
+
+    /**
+     * OrphanTermBuffer constructor
+     * @param budget the estimated heap in bytes the buffered terms may use before they are spilled
+     */
+    public OrphanTermBuffer(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Buffers a term row whose code list has not been read yet
+     * @param row the term row; the array is copied
+     * @param lineNumber the line number of the row in the text file
+     * @throws IOException if the buffer is over budget and cannot be spilled
+     */
+    public void add(String[] row, int lineNumber) throws IOException {
+        Orphan o = new Orphan(this.sequence++, lineNumber, row.clone());
+        List<Orphan> terms = this.pending.get(o.row[1]);
+        if (terms == null) {
+            terms = new ArrayList<>();
+            this.pending.put(o.row[1], terms);
+        }
+        terms.add(o);
+        this.pendingBytes += o.size();
+        if (this.pendingBytes > this.budget) {
+            spill();
+        }
+    }
+
+    /**
+     * Removes and returns the buffered in-memory terms of a code list. Terms of the code
+     * list that were spilled are returned later by merge, and precede these terms.
+     * @param clCode the code list C-code
+     * @return the term rows in read order, empty if there are none
+     */
+    public List<Orphan> take(String clCode) {
+        List<Orphan> terms = this.pending.remove(clCode);
+        if (terms == null) {
+            return Collections.emptyList();
+        }
+        for (Orphan o : terms) {
+            this.pendingBytes -= o.size();
+        }
+        return terms;
+    }
+
+    /**
+     * Removes and returns the in-memory terms that are still buffered, whose code list was never read
+     * @return the term rows ordered by code list C-code and read order
+     */
+    public List<Orphan> takeRemaining() {
+        List<Orphan> remaining = new ArrayList<>();
+        for (List<Orphan> terms : new TreeMap<>(this.pending).values()) {
+            remaining.addAll(terms);
+        }
+        this.pending.clear();
+        this.pendingBytes = 0;
+        return remaining;
+    }
+
+    /**
+     * Returns the number of terms written to the spill files
+     * @return the spilled term count
+     */
+    public long getSpilledCount() {
+        return this.spilledCount;
+    }
+
+    /**
+     * Merges the spill files into one sequence ordered by code list C-code and read order
+     * @return the merge, or null if nothing was spilled
+     * @throws IOException if a spill file cannot be read
+     */
+    public Merge merge() throws IOException {
+        return this.runs.isEmpty() ? null : new Merge(this.runs);
+    }
+
+    /**
+     * Deletes the spill files
+     */
+    @Override
+    public void close() {
+        for (File run : this.runs) {
+            if (!run.delete()) {
+                run.deleteOnExit();
+            }
+        }
+        this.runs.clear();
+    }
+
+    /* writes the in-memory terms to a new run file sorted by code list C-code and read order */
+    private void spill() throws IOException {
+        File run = File.createTempFile("ct2odm-orphans", ".run");
+        this.runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (List<Orphan> terms : new TreeMap<>(this.pending).values()) {
+                for (Orphan o : terms) {
+                    out.writeBoolean(true);
+                    out.writeLong(o.sequence);
+                    out.writeInt(o.lineNumber);
+                    for (String field : o.row) {
+                        writeField(out, field);
+                    }
+                    this.spilledCount++;
+                }
+            }
+            out.writeBoolean(false);
+        }
+        this.pending.clear();
+        this.pendingBytes = 0;
+    }
+
+    /* writes a field as its UTF-8 length, or -1 for null, followed by its bytes */
+    private static void writeField(DataOutputStream out, String field) throws IOException {
+        if (field == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Orphan is a buffered term row with its read order and line number
+     */
+    static final class Orphan {
+        private final long sequence;
+        private final int lineNumber;
+        private final String[] row;
+
+        private Orphan(long sequence, int lineNumber, String[] row) {
+            this.sequence = sequence;
+            this.lineNumber = lineNumber;
+            this.row = row;
+        }
+
+        public int getLineNumber() {
+            return this.lineNumber;
+        }
+
+        public String[] getRow() {
+            return this.row;
+        }
+
+        /* returns the estimated heap used by the row */
+        private long size() {
+            long size = ROW_OVERHEAD;
+            for (String field : this.row) {
+                size += field == null ? 0 : FIELD_OVERHEAD + 2L * field.length();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Merge reads the spill files in code list C-code and read order
+     */
+    static final class Merge implements Closeable {
+        private final PriorityQueue<Run> queue = new PriorityQueue<>(11, new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                int c = a.head.row[1].compareTo(b.head.row[1]);
+                return c != 0 ? c : Long.compare(a.head.sequence, b.head.sequence);
+            }
+        });
+
+        private Merge(List<File> files) throws IOException {
+            try {
+                for (File f : files) {
+                    Run run = new Run(f);
+                    if (run.advance()) {
+                        this.queue.add(run);
+                    } else {
+                        run.in.close();
+                    }
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Returns the next spilled term
+         * @return the term, or null when all runs are read
+         * @throws IOException if a spill file cannot be read
+         */
+        public Orphan next() throws IOException {
+            Run run = this.queue.poll();
+            if (run == null) {
+                return null;
+            }
+            Orphan o = run.head;
+            if (run.advance()) {
+                this.queue.add(run);
+            } else {
+                run.in.close();
+            }
+            return o;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Run run : this.queue) {
+                run.in.close();
+            }
+            this.queue.clear();
+        }
+    }
+
+    /* a spill file being merged and its next term */
+    private static final class Run {
+        private final DataInputStream in;
+        private Orphan head;
+
+        private Run(File f) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+        }
+
+        /* reads the next term of the run into head, returning false at the end of the run */
+        private boolean advance() throws IOException {
+            if (!this.in.readBoolean()) {
+                this.head = null;
+                return false;
+            }
+            long sequence = this.in.readLong();
+            int lineNumber = this.in.readInt();
+            String[] row = new String[CTTextReader.FIELD_COUNT];
+            for (int i = 0; i < row.length; i++) {
+                int len = this.in.readInt();
+                if (len >= 0) {
+                    byte[] bytes = new byte[len];
+                    this.in.readFully(bytes);
+                    row[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            this.head = new Orphan(sequence, lineNumber, row);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * PackageCache stores a parsed CT package as a compact binary snapshot so that a
+ * reconversion of an unchanged text file skips parsing. The snapshot records the size,
+ * modification time, and CRC32 of the source text file and whether broken rows were
+ * repaired, and is only used when all four still match. The rows repaired and the rows
+ * quarantined by the parse are stored with the package, so a reconversion reports them
+ * as the parse did. All package sections are fixed-width big-endian int arrays followed
+ * by a UTF-8 string blob, so the snapshot is read by memory-mapping it. The snapshot file
+ * name adds a CRC32 of the canonical path of the text file to its name, so text files of
+ * the same name in different directories have their own snapshots.
+ * <pre>
+ * header   magic "CT2ODMPC", version, repair flag, source size, mtime and CRC32, body CRC32, section counts
+ * strings  int[stringCount + 1] offsets into the blob; each distinct string is stored once
+ * codelists int[codelistCount * 9]: 7 field string ids, first term, term count
+ * terms    int[termCount * 6]: code, submission value, definition, preferred term string ids, first synonym, synonym count
+ * synonyms int[synonymCount] string ids
+ * blob     UTF-8 bytes of the strings
+ * rejected repaired row count, then the rows rejected by the reader and the terms whose code list is not
+ *          in the file, each as a count followed by line number, reason, and content of each row
+ * </pre>
+ * @author Sam Hume swhume@gmail.com
+ */
+class PackageCache {
+    private static final byte[] MAGIC = "CT2ODMPC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 72;
+    private static final int CODELIST_INTS = 9;
+    private static final int TERM_INTS = 6;
+    private final File cacheFile;
+    private final File sourceFile;
+    private final boolean repair;
+    private int repairedCount;
+    private List<CTTextReader.RejectedRow> rejectedRows = new ArrayList<>();
+    private List<CTTextReader.RejectedRow> orphanRows = new ArrayList<>();
+
+    /**
+     * PackageCache constructor takes the cache directory and the source text file
+     * @param cacheDir directory the snapshot files are kept in
+     * @param sourceFileName path and file name of the tab delimited text file
+     * @param repair true if broken rows are repaired when the text file is read
+     * @throws IOException if the canonical path of the text file cannot be resolved
+     */
+    public PackageCache(String cacheDir, String sourceFileName, boolean repair) throws IOException {
+        this.sourceFile = new File(sourceFileName);
+        this.cacheFile = new File(cacheDir, cacheFileName(this.sourceFile, ".ctc"));
+        this.repair = repair;
+    }
+
+    /**
+     * Returns the name of a file kept in a cache directory for a text file: the text file
+     * name, a CRC32 of its canonical path in hex, and the extension
+     * @param sourceFile the text file
+     * @param extension the extension of the cache file, including the dot
+     * @return the cache file name
+     * @throws IOException if the canonical path of the text file cannot be resolved
+     */
+    static String cacheFileName(File sourceFile, String extension) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(sourceFile.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+        return sourceFile.getName() + "." + String.format("%08x", crc.getValue()) + extension;
+    }
+
+    /**
+     * Loads the package from the snapshot if it exists and matches the source text file
+     * @param store TermStore to hold the terms in, or null to create Term objects
+     * @return the code lists keyed by C-code, or null if there is no valid snapshot
+     * @throws IOException if the snapshot cannot be read
+     */
+    public TreeMap<String, Codelist> load(TermStore store) throws IOException {
+        if (!this.cacheFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(this.cacheFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            buf.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || buf.getInt(8) != VERSION || buf.getInt(12) != (this.repair ? 1 : 0)
+                    || buf.getLong(16) != this.sourceFile.length()
+                    || buf.getLong(24) != this.sourceFile.lastModified()
+                    || buf.getLong(32) != sourceCrc(this.sourceFile)
+                    || buf.getLong(40) != crc(buf, HEADER_SIZE, buf.limit())) {
+                return null;
+            }
+            TreeMap<String, Codelist> pkg = read(buf, store);
+            readRejections(buf);
+            return pkg;
+        }
+    }
+
+    /**
+     * Sets the rows repaired and quarantined by the parse, stored with the package by save
+     * @param repairedCount number of rows repaired
+     * @param rejectedRows rows rejected by the reader
+     * @param orphanRows terms whose code list is not in the text file
+     */
+    public void setRejections(int repairedCount, List<CTTextReader.RejectedRow> rejectedRows,
+            List<CTTextReader.RejectedRow> orphanRows) {
+        this.repairedCount = repairedCount;
+        this.rejectedRows = rejectedRows;
+        this.orphanRows = orphanRows;
+    }
+
+    /**
+     * Returns the number of rows repaired by the parse of the loaded or saved package
+     * @return the repaired row count
+     */
+    public int getRepairedCount() {
+        return this.repairedCount;
+    }
+
+    /**
+     * Returns the rows rejected by the reader in the parse of the loaded or saved package
+     * @return the rejected rows in file order
+     */
+    public List<CTTextReader.RejectedRow> getRejectedRows() {
+        return this.rejectedRows;
+    }
+
+    /**
+     * Returns the terms of the loaded or saved package whose code list is not in the text file
+     * @return the orphan terms in code list order
+     */
+    public List<CTTextReader.RejectedRow> getOrphanRows() {
+        return this.orphanRows;
+    }
+
+    /**
+     * Writes the snapshot of a parsed package, replacing any existing snapshot
+     * @param pkg the code lists keyed by C-code
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void save(TreeMap<String, Codelist> pkg) throws IOException {
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> ids = new HashMap<>();
+        List<int[]> codelists = new ArrayList<>();
+        List<int[]> terms = new ArrayList<>();
+        List<Integer> synonyms = new ArrayList<>();
+        for (Codelist cl : pkg.values()) {
+            String[] row = cl.toRow();
+            int[] rec = new int[CODELIST_INTS];
+            rec[0] = id(row[0], strings, ids);
+            for (int i = 2; i < CTTextReader.FIELD_COUNT; i++) {
+                rec[i - 1] = id(row[i], strings, ids);
+            }
+            rec[7] = terms.size();
+            for (Term t : cl.getTerms()) {
+                String[] termRow = t.toRow(cl);
+                terms.add(new int[] {id(termRow[0], strings, ids), id(termRow[4], strings, ids),
+                    id(termRow[6], strings, ids), id(termRow[7], strings, ids), synonyms.size(), t.getSynonyms().size()});
+                for (String s : t.getSynonyms()) {
+                    synonyms.add(id(s, strings, ids));
+                }
+            }
+            rec[8] = terms.size() - rec[7];
+            codelists.add(rec);
+        }
+        File parent = this.cacheFile.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(this.cacheFile.getName(), ".tmp", parent);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.write(new byte[HEADER_SIZE]);
+                CRC32 bodyCrc = new CRC32();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new CheckedOutputStream(Channels.newOutputStream(raf.getChannel()), bodyCrc), 65536));
+                long blobSize = writeBody(out, strings, codelists, terms, synonyms);
+                out.writeInt(this.repairedCount);
+                writeRejections(out, this.rejectedRows);
+                writeRejections(out, this.orphanRows);
+                out.flush();
+                raf.seek(0);
+                raf.write(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(this.repair ? 1 : 0);
+                raf.writeLong(this.sourceFile.length());
+                raf.writeLong(this.sourceFile.lastModified());
+                raf.writeLong(sourceCrc(this.sourceFile));
+                raf.writeLong(bodyCrc.getValue());
+                raf.writeInt(strings.size());
+                raf.writeInt(codelists.size());
+                raf.writeInt(terms.size());
+                raf.writeInt(synonyms.size());
+                raf.writeLong(blobSize);
+            }
+            Files.move(tmp.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /* writes the string offsets, codelist, term, and synonym sections and the string blob, returning the blob size */
+    private static long writeBody(DataOutputStream out, List<String> strings, List<int[]> codelists,
+            List<int[]> terms, List<Integer> synonyms) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(strings.size());
+        int offset = 0;
+        for (String s : strings) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            encoded.add(b);
+            out.writeInt(offset);
+            offset += b.length;
+        }
+        out.writeInt(offset);
+        for (int[] rec : codelists) {
+            for (int v : rec) {
+                out.writeInt(v);
+            }
+        }
+        for (int[] rec : terms) {
+            for (int v : rec) {
+                out.writeInt(v);
+            }
+        }
+        for (int id : synonyms) {
+            out.writeInt(id);
+        }
+        for (byte[] b : encoded) {
+            out.write(b);
+        }
+        return offset;
+    }
+
+    /* writes the count, then the line number, reason, and content of each rejected row */
+    private static void writeRejections(DataOutputStream out, List<CTTextReader.RejectedRow> rows) throws IOException {
+        out.writeInt(rows.size());
+        for (CTTextReader.RejectedRow r : rows) {
+            out.writeInt(r.getLineNumber());
+            writeString(out, r.getReason());
+            writeString(out, r.getContent());
+        }
+    }
+
+    /* writes a string as its UTF-8 byte length and bytes */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /* decodes the repaired row count and rejected rows that follow the string blob */
+    private void readRejections(ByteBuffer buf) {
+        buf.position(HEADER_SIZE + 4 * (buf.getInt(48) + 1) + 4 * CODELIST_INTS * buf.getInt(52)
+                + 4 * TERM_INTS * buf.getInt(56) + 4 * buf.getInt(60) + (int) buf.getLong(64));
+        this.repairedCount = buf.getInt();
+        this.rejectedRows = readRejectedRows(buf);
+        this.orphanRows = readRejectedRows(buf);
+    }
+
+    /* decodes a count followed by the line number, reason, and content of each rejected row */
+    private static List<CTTextReader.RejectedRow> readRejectedRows(ByteBuffer buf) {
+        int count = buf.getInt();
+        List<CTTextReader.RejectedRow> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int lineNumber = buf.getInt();
+            String reason = readString(buf);
+            rows.add(new CTTextReader.RejectedRow(lineNumber, reason, readString(buf)));
+        }
+        return rows;
+    }
+
+    /* decodes a string written as its UTF-8 byte length and bytes */
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /* decodes the mapped snapshot into code lists */
+    private static TreeMap<String, Codelist> read(ByteBuffer buf, TermStore store) {
+        int stringCount = buf.getInt(48);
+        int codelistCount = buf.getInt(52);
+        int termCount = buf.getInt(56);
+        int synonymCount = buf.getInt(60);
+        int offsets = HEADER_SIZE;
+        int clBase = offsets + 4 * (stringCount + 1);
+        int termBase = clBase + 4 * CODELIST_INTS * codelistCount;
+        int synBase = termBase + 4 * TERM_INTS * termCount;
+        int blobBase = synBase + 4 * synonymCount;
+        String[] strings = new String[stringCount];
+        byte[] scratch = new byte[256];
+        for (int i = 0; i < stringCount; i++) {
+            int start = buf.getInt(offsets + 4 * i);
+            int len = buf.getInt(offsets + 4 * (i + 1)) - start;
+            if (len > scratch.length) {
+                scratch = new byte[len];
+            }
+            buf.position(blobBase + start);
+            buf.get(scratch, 0, len);
+            strings[i] = len == 0 ? "" : new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+        TreeMap<String, Codelist> pkg = new TreeMap<>();
+        String[] row = new String[CTTextReader.FIELD_COUNT];
+        for (int c = 0; c < codelistCount; c++) {
+            int rec = clBase + 4 * CODELIST_INTS * c;
+            row[0] = strings[buf.getInt(rec)];
+            row[1] = "";
+            for (int i = 2; i < CTTextReader.FIELD_COUNT; i++) {
+                row[i] = strings[buf.getInt(rec + 4 * (i - 1))];
+            }
+            Codelist cl = new Codelist(row);
+            int firstTerm = buf.getInt(rec + 28);
+            int count = buf.getInt(rec + 32);
+            for (int t = firstTerm; t < firstTerm + count; t++) {
+                int trec = termBase + 4 * TERM_INTS * t;
+                String[] synonyms = new String[buf.getInt(trec + 20)];
+                int synStart = buf.getInt(trec + 16);
+                for (int s = 0; s < synonyms.length; s++) {
+                    synonyms[s] = strings[buf.getInt(synBase + 4 * (synStart + s))];
+                }
+                String code = strings[buf.getInt(trec)];
+                String subVal = strings[buf.getInt(trec + 4)];
+                String defn = strings[buf.getInt(trec + 8)];
+                String prefTerm = strings[buf.getInt(trec + 12)];
+                if (store != null) {
+                    StringBuilder joined = new StringBuilder();
+                    for (int s = 0; s < synonyms.length; s++) {
+                        joined.append(s == 0 ? "" : ";").append(synonyms[s]);
+                    }
+                    String[] termRow = {code, row[0], "", row[3], subVal, joined.toString(), defn, prefTerm};
+                    cl.addStoredTerm(store, store.add(termRow));
+                } else {
+                    cl.AddTerm(new Term(code, subVal, Arrays.asList(synonyms), defn, prefTerm));
+                }
+            }
+            pkg.put(cl.getCode(), cl);
+        }
+        return pkg;
+    }
+
+    /* returns the id of a string in the string table, adding it if needed */
+    private static int id(String s, List<String> strings, Map<String, Integer> ids) {
+        String value = s == null ? "" : s;
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = strings.size();
+            strings.add(value);
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    /* returns the CRC32 of the source text file */
+    private static long sourceCrc(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            CRC32 crc = new CRC32();
+            long pos = 0;
+            long size = channel.size();
+            while (pos < size) {
+                long len = Math.min(size - pos, Integer.MAX_VALUE);
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, len));
+                pos += len;
+            }
+            return crc.getValue();
+        }
+    }
+
+    /* returns the CRC32 of a range of a buffer */
+    private static long crc(ByteBuffer buf, int start, int end) {
+        ByteBuffer range = buf.duplicate();
+        range.position(start);
+        range.limit(end);
+        CRC32 crc = new CRC32();
+        crc.update(range);
+        return crc.getValue();
+    }
+}
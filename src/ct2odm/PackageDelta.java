@@ -0,0 +1,191 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * PackageDelta compares two CT packages and finds the code lists and terms that were
+ * added, removed, or changed. Code lists are matched by C-code, terms by C-code within
+ * their code list, and changes are detected using content hashes of their fields. A term
+ * C-code repeated within a code list is matched by its occurrence, so the second
+ * occurrence in the previous package is compared with the second in the current one.
+ * @author Sam Hume swhume@gmail.com
+ */
+class PackageDelta {
+    /** the kind of change made to a code list or term */
+    enum Change { ADDED, REMOVED, CHANGED }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final TreeMap<String, Codelist> changedCodelists = new TreeMap<>();
+
+    /**
+     * PackageDelta constructor compares the previous package to the current package
+     * @param previous the code lists in the previous package keyed by C-code
+     * @param current the code lists in the current package keyed by C-code
+     */
+    public PackageDelta(TreeMap<String, Codelist> previous, TreeMap<String, Codelist> current) {
+        TreeSet<String> clCodes = new TreeSet<>(previous.keySet());
+        clCodes.addAll(current.keySet());
+        for (String clCode : clCodes) {
+            Codelist prev = previous.get(clCode);
+            Codelist curr = current.get(clCode);
+            if (prev == null) {
+                this.entries.add(new Entry(Change.ADDED, curr, null));
+                this.changedCodelists.put(clCode, curr);
+            } else if (curr == null) {
+                this.entries.add(new Entry(Change.REMOVED, prev, null));
+            } else {
+                int count = this.entries.size();
+                if (prev.contentHash() != curr.contentHash()) {
+                    this.entries.add(new Entry(Change.CHANGED, curr, null));
+                }
+                compareTerms(prev, curr);
+                if (this.entries.size() > count) {
+                    this.changedCodelists.put(clCode, curr);
+                }
+            }
+        }
+    }
+
+    /* find the terms added, removed, or changed within a code list */
+    private void compareTerms(Codelist prev, Codelist curr) {
+        Map<String, Term> prevTerms = termsByCode(prev);
+        Map<String, Term> currTerms = termsByCode(curr);
+        for (Map.Entry<String, Term> e : currTerms.entrySet()) {
+            Term t = e.getValue();
+            Term p = prevTerms.get(e.getKey());
+            if (p == null) {
+                this.entries.add(new Entry(Change.ADDED, curr, t));
+            } else if (p.contentHash() != t.contentHash()) {
+                this.entries.add(new Entry(Change.CHANGED, curr, t));
+            }
+        }
+        for (Map.Entry<String, Term> e : prevTerms.entrySet()) {
+            if (!currTerms.containsKey(e.getKey())) {
+                this.entries.add(new Entry(Change.REMOVED, curr, e.getValue()));
+            }
+        }
+    }
+
+    /* index the terms of a code list by C-code and occurrence keeping the package order */
+    private static Map<String, Term> termsByCode(Codelist cl) {
+        Map<String, Term> terms = new LinkedHashMap<>();
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (Term t : cl.getTerms()) {
+            Integer n = occurrences.get(t.getCode());
+            n = n == null ? 0 : n + 1;
+            occurrences.put(t.getCode(), n);
+            terms.put(t.getCode() + "\t" + n, t);
+        }
+        return terms;
+    }
+
+    /**
+     * Returns the added and changed code lists, in full, keyed by C-code. Removed code
+     * lists are only listed in the change report since ODM metadata cannot delete them.
+     * @return the code lists to include in a Transactional ODM file
+     */
+    public TreeMap<String, Codelist> getChangedCodelists() {
+        return this.changedCodelists;
+    }
+
+    /**
+     * Returns the individual code list and term changes
+     * @return the list of changes ordered by code list C-code
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(this.entries);
+    }
+
+    /**
+     * Writes the changes as a tab delimited report with a column header row
+     * @param fileName path and file name of the report
+     * @throws IOException if the report cannot be written
+     */
+    public void writeReport(String fileName) throws IOException {
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+            out.write("Change\tCodelist Code\tCode\tCDISC Submission Value\n");
+            for (Entry e : this.entries) {
+                out.write(e.change + "\t" + e.clCode + "\t" + (e.itCode == null ? "" : e.itCode) + "\t" + e.subVal + "\n");
+            }
+        }
+    }
+
+    /**
+     * Returns a one line count of the changes by kind
+     * @return the change summary
+     */
+    public String summary() {
+        int[] codelists = new int[Change.values().length];
+        int[] terms = new int[Change.values().length];
+        for (Entry e : this.entries) {
+            if (e.itCode == null) {
+                codelists[e.change.ordinal()]++;
+            } else {
+                terms[e.change.ordinal()]++;
+            }
+        }
+        return String.format("Code lists: %d added, %d removed, %d changed; terms: %d added, %d removed, %d changed",
+                codelists[0], codelists[1], codelists[2], terms[0], terms[1], terms[2]);
+    }
+
+    /**
+     * Entry is a single code list or term change
+     */
+    static final class Entry {
+        private final Change change;
+        private final String clCode;
+        private final String itCode;
+        private final String subVal;
+
+        Entry(Change change, Codelist cl, Term t) {
+            this.change = change;
+            this.clCode = cl.getCode();
+            this.itCode = t == null ? null : t.getCode();
+            this.subVal = t == null ? cl.getSubmissionValue() : t.getSubmissionValue();
+        }
+
+        public Change getChange() {
+            return this.change;
+        }
+
+        public String getCodelistCode() {
+            return this.clCode;
+        }
+
+        /**
+         * Returns the term C-code
+         * @return the term C-code, or null for a change to the code list itself
+         */
+        public String getTermCode() {
+            return this.itCode;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * PackageEmitter writes a parsed CT package in one output format. The code lists are
+ * passed to the emitter one at a time in C-code order between start and finish; close
+ * releases the output whether or not the package was finished.
+ * @author Sam Hume swhume@gmail.com
+ */
+interface PackageEmitter extends Closeable {
+
+    /**
+     * Opens the output and writes any content that precedes the code lists
+     * @throws IOException if the output cannot be written
+     */
+    void start() throws IOException;
+
+    /**
+     * Writes a code list and its terms
+     * @param cl the code list
+     * @throws IOException if the output cannot be written
+     */
+    void write(Codelist cl) throws IOException;
+
+    /**
+     * Writes any content that follows the code lists
+     * @throws IOException if the output cannot be written
+     */
+    void finish() throws IOException;
+}
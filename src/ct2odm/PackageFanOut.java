@@ -0,0 +1,142 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * PackageFanOut feeds the code lists of one parsed package to several emitters that run
+ * concurrently, one thread per emitter, so each output format is written without
+ * parsing the text file again. Each emitter reads the code lists from its own bounded
+ * queue, so a slow emitter only holds back the others by the queue size. An emitter that
+ * fails, including with an Error, keeps taking code lists from its queue until the end,
+ * so the producer never blocks on it.
+ * @author Sam Hume swhume@gmail.com
+ */
+class PackageFanOut {
+    private static final Codelist END = new Codelist(new String[CTTextReader.FIELD_COUNT]);
+    private final int queueSize;
+
+    /**
+     * PackageFanOut constructor
+     * @param queueSize the number of code lists that may wait for each emitter
+     */
+    public PackageFanOut(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Writes the code lists with every emitter and closes the emitters
+     * @param codelists the code lists in the order they are written
+     * @param emitters the emitters of each output format
+     * @throws IOException if an emitter fails; the other emitters still complete
+     */
+    public void run(Collection<Codelist> codelists, List<PackageEmitter> emitters) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(emitters.size());
+        List<BlockingQueue<Codelist>> queues = new ArrayList<>();
+        List<Future<Void>> results = new ArrayList<>();
+        try {
+            for (PackageEmitter emitter : emitters) {
+                BlockingQueue<Codelist> queue = new ArrayBlockingQueue<>(this.queueSize);
+                queues.add(queue);
+                results.add(pool.submit(emitterTask(emitter, queue)));
+            }
+            try {
+                for (Codelist cl : codelists) {
+                    for (BlockingQueue<Codelist> queue : queues) {
+                        queue.put(cl);
+                    }
+                }
+                for (BlockingQueue<Codelist> queue : queues) {
+                    queue.put(END);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the outputs");
+            }
+            IOException failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex.getCause() instanceof IOException
+                                ? (IOException) ex.getCause() : new IOException(ex.getCause().getMessage(), ex.getCause());
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing the outputs");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /* returns the task that writes the queued code lists with an emitter until the end marker */
+    private static Callable<Void> emitterTask(final PackageEmitter emitter, final BlockingQueue<Codelist> queue) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Throwable failure = null;
+                try {
+                    emitter.start();
+                } catch (Throwable ex) {
+                    failure = ex;
+                }
+                Codelist cl;
+                while ((cl = queue.take()) != END) {
+                    // after a failure, even an Error, the queue is still drained so the producer never blocks
+                    if (failure == null) {
+                        try {
+                            emitter.write(cl);
+                        } catch (Throwable ex) {
+                            failure = ex;
+                        }
+                    }
+                }
+                try {
+                    if (failure == null) {
+                        emitter.finish();
+                    }
+                } finally {
+                    emitter.close();
+                }
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                if (failure != null) {
+                    throw (Exception) failure;
+                }
+                return null;
+            }
+        };
+    }
+}
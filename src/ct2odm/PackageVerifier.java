@@ -0,0 +1,209 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * PackageVerifier compares the code lists read from a CT-XML file with the package
+ * parsed from its source text file. The CT-XML code lists are compared one at a time
+ * as they are read, so only the source package is held in memory. Text values are
+ * compared with XML whitespace normalized, since the CT-XML output trims (pretty
+ * format) or normalizes (compact format) element text. A term C-code repeated within a
+ * code list is matched occurrence by occurrence in file order.
+ * @author Sam Hume swhume@gmail.com
+ */
+class PackageVerifier {
+    /** the kind of difference between the source package and the CT-XML file */
+    enum Difference { MISSING, EXTRA, CHANGED }
+
+    private final TreeMap<String, Codelist> expected;
+    private final Set<String> seen = new HashSet<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private long codelistCount = 0;
+    private long termCount = 0;
+
+    /**
+     * PackageVerifier constructor takes the package parsed from the source text file
+     * @param expected the source code lists keyed by C-code
+     */
+    public PackageVerifier(TreeMap<String, Codelist> expected) {
+        this.expected = expected;
+    }
+
+    /**
+     * Reads every code list of a CT-XML file and compares it with the source package
+     * @param reader the reader of the CT-XML file
+     * @throws IOException if the CT-XML file cannot be read
+     */
+    public void verify(OdmCTReader reader) throws IOException {
+        Codelist actual;
+        while ((actual = reader.nextCodelist()) != null) {
+            compare(actual);
+        }
+        for (Codelist cl : this.expected.values()) {
+            if (!this.seen.contains(cl.getCode())) {
+                this.entries.add(new Entry(Difference.MISSING, cl.getCode(), null, null));
+            }
+        }
+    }
+
+    /* compares a code list read from the CT-XML file with the source code list */
+    private void compare(Codelist actual) {
+        this.codelistCount++;
+        String clCode = actual.getCode();
+        Codelist cl = this.expected.get(clCode);
+        if (cl == null || !this.seen.add(clCode)) {
+            this.entries.add(new Entry(Difference.EXTRA, clCode, null, null));
+            return;
+        }
+        compareField(clCode, null, "Codelist Extensible", cl.getExtensible(), actual.getExtensible());
+        compareField(clCode, null, "Codelist Name", cl.getName(), actual.getName());
+        compareField(clCode, null, "CDISC Submission Value", cl.getSubmissionValue(), actual.getSubmissionValue());
+        compareField(clCode, null, "CDISC Synonym(s)", cl.getSynonym(), actual.getSynonym());
+        compareField(clCode, null, "CDISC Definition", cl.getDefinition(), actual.getDefinition());
+        compareField(clCode, null, "NCI Preferred Term", cl.getPreferredTerm(), actual.getPreferredTerm());
+        Map<String, ArrayDeque<Term>> terms = new HashMap<>();
+        for (Term t : cl.getTerms()) {
+            ArrayDeque<Term> occurrences = terms.get(t.getCode());
+            if (occurrences == null) {
+                occurrences = new ArrayDeque<>();
+                terms.put(t.getCode(), occurrences);
+            }
+            occurrences.add(t);
+        }
+        for (Term a : actual.getTerms()) {
+            this.termCount++;
+            ArrayDeque<Term> occurrences = terms.get(a.getCode());
+            Term t = occurrences == null ? null : occurrences.poll();
+            if (t == null) {
+                this.entries.add(new Entry(Difference.EXTRA, clCode, a.getCode(), null));
+                continue;
+            }
+            compareField(clCode, t.getCode(), "CDISC Submission Value", t.getSubmissionValue(), a.getSubmissionValue());
+            compareField(clCode, t.getCode(), "CDISC Synonym(s)", synonyms(t), synonyms(a));
+            compareField(clCode, t.getCode(), "CDISC Definition", t.getDefinition(), a.getDefinition());
+            compareField(clCode, t.getCode(), "NCI Preferred Term", t.getPreferredTerm(), a.getPreferredTerm());
+        }
+        for (Term t : cl.getTerms()) {
+            if (terms.get(t.getCode()).poll() != null) {
+                this.entries.add(new Entry(Difference.MISSING, clCode, t.getCode(), null));
+            }
+        }
+    }
+
+    /* records a CHANGED entry when the normalized source and CT-XML values differ */
+    private void compareField(String clCode, String itCode, String field, String expectedValue, String actualValue) {
+        String e = expectedValue == null ? "" : OdmStreamWriter.normalize(expectedValue);
+        String a = actualValue == null ? "" : OdmStreamWriter.normalize(actualValue);
+        if (!e.equals(a)) {
+            this.entries.add(new Entry(Difference.CHANGED, clCode, itCode, field));
+        }
+    }
+
+    /* returns the normalized synonyms of a term joined by semicolons */
+    private static String synonyms(Term t) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : t.getSynonyms()) {
+            sb.append(sb.length() == 0 ? "" : ";").append(OdmStreamWriter.normalize(s));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the differences found
+     * @return the list of differences in CT-XML file order, followed by the missing code lists
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(this.entries);
+    }
+
+    /**
+     * Writes the differences as a tab delimited report with a column header row
+     * @param fileName path and file name of the report
+     * @throws IOException if the report cannot be written
+     */
+    public void writeReport(String fileName) throws IOException {
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+            out.write("Difference\tCodelist Code\tCode\tField\n");
+            for (Entry e : this.entries) {
+                out.write(e + "\n");
+            }
+        }
+    }
+
+    /**
+     * Returns a one line count of the code lists and terms verified and the differences found
+     * @return the verification summary
+     */
+    public String summary() {
+        return String.format("Verified %d code lists and %d terms: %d differences",
+                this.codelistCount, this.termCount, this.entries.size());
+    }
+
+    /**
+     * Entry is a single difference between the source package and the CT-XML file
+     */
+    static final class Entry {
+        private final Difference difference;
+        private final String clCode;
+        private final String itCode;
+        private final String field;
+
+        Entry(Difference difference, String clCode, String itCode, String field) {
+            this.difference = difference;
+            this.clCode = clCode;
+            this.itCode = itCode;
+            this.field = field;
+        }
+
+        public Difference getDifference() {
+            return this.difference;
+        }
+
+        public String getCodelistCode() {
+            return this.clCode;
+        }
+
+        /**
+         * Returns the term C-code
+         * @return the term C-code, or null for a difference in the code list itself
+         */
+        public String getTermCode() {
+            return this.itCode;
+        }
+
+        @Override
+        public String toString() {
+            return this.difference + "\t" + this.clCode + "\t" + (this.itCode == null ? "" : this.itCode)
+                    + "\t" + (this.field == null ? "" : this.field);
+        }
+    }
+}
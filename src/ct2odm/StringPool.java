@@ -0,0 +1,127 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StringPool is the package-scoped symbol table used while parsing a CT package so that
+ * repeated values such as submission values, synonyms, definitions and preferred terms
+ * are stored once. ASCII values are looked up directly from the UTF-8 bytes of the text
+ * file so a String is only created the first time a value is seen. A StringPool is not
+ * thread-safe.
+ * @author Sam Hume swhume@gmail.com
+ */
+final class StringPool {
+    private String[] table = new String[4096];
+    private int size = 0;
+
+    /**
+     * Returns the pooled copy of a string, adding it to the pool if needed
+     * @param s the string to intern
+     * @return the pooled string equal to s
+     */
+    public String intern(String s) {
+        if (s == null || s.isEmpty()) {
+            return s;
+        }
+        int h = s.hashCode();
+        int mask = this.table.length - 1;
+        for (int i = spread(h) & mask; ; i = (i + 1) & mask) {
+            String e = this.table[i];
+            if (e == null) {
+                return add(i, s);
+            } else if (e.hashCode() == h && e.equals(s)) {
+                return e;
+            }
+        }
+    }
+
+    /**
+     * Returns the pooled string for a slice of UTF-8 bytes, adding it to the pool if needed
+     * @param b the byte array containing the UTF-8 encoded value
+     * @param off offset of the value in the array
+     * @param len length of the value in bytes
+     * @return the pooled string decoded from the bytes
+     */
+    public String intern(byte[] b, int off, int len) {
+        if (len == 0) {
+            return "";
+        }
+        int h = 0;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] < 0) {
+                return intern(new String(b, off, len, StandardCharsets.UTF_8));
+            }
+            h = 31 * h + b[i];
+        }
+        int mask = this.table.length - 1;
+        for (int i = spread(h) & mask; ; i = (i + 1) & mask) {
+            String e = this.table[i];
+            if (e == null) {
+                return add(i, new String(b, off, len, StandardCharsets.ISO_8859_1));
+            } else if (e.hashCode() == h && asciiEquals(e, b, off, len)) {
+                return e;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of distinct strings in the pool
+     * @return the pool size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /* stores a new string in an empty slot and grows the table when it is half full */
+    private String add(int slot, String s) {
+        this.table[slot] = s;
+        if (++this.size > this.table.length / 2) {
+            String[] old = this.table;
+            this.table = new String[old.length * 2];
+            int mask = this.table.length - 1;
+            for (String e : old) {
+                if (e != null) {
+                    int i = spread(e.hashCode()) & mask;
+                    while (this.table[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    this.table[i] = e;
+                }
+            }
+        }
+        return s;
+    }
+
+    /* compares a string to ASCII bytes */
+    private static boolean asciiEquals(String s, byte[] b, int off, int len) {
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != b[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* spreads the high bits of the hash into the low bits used for the table index */
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
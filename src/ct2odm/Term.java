@@ -15,9 +15,11 @@
 */
 package ct2odm;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.jdom2.Attribute;
 import org.jdom2.Element;
 
@@ -25,11 +27,11 @@ import org.jdom2.Element;
  * Term represents a CDISC Controlled Terminology Code List Term
  * @author Sam Hume swhume@gmail.com
  */
-class Term {
-    private final XMLNamespace ns = new XMLNamespace();
+public class Term {
+    private static final XMLNamespace NS = XMLNamespace.getInstance();
     private final String itCode;
     private final String itSubVal;
-    private final List<String> itSynonyms = new ArrayList<>();
+    private final List<String> itSynonyms;
     private final String itDefn;
     private final String itPrefTerm;
         
@@ -37,25 +39,58 @@ class Term {
      * Codelist constructor takes a string array of data from the CT delimited text file 
      * @param row a String array containing the row of delimited text file CT
      */
-    public Term(String[] row) {
+    Term(String[] row) {
+        this(row, null);
+    }
+
+    /**
+     * Term constructor that stores the synonyms split from the row in a string pool
+     * @param row a String array containing the row of delimited text file CT
+     * @param pool the package string pool, or null to not pool the synonyms
+     */
+    Term(String[] row, StringPool pool) {
         this.itCode = row[0];                      // Code
         this.itSubVal = row[4];                    // CDISC Submission Value
         if (row[5] != null && !row[5].isEmpty()) { //CDISC Synonym(s)
-            this.itSynonyms.addAll(Arrays.asList(row[5].split(";")));
+            String[] synonyms = row[5].split(";");
+            if (pool != null) {
+                for (int i = 0; i < synonyms.length; i++) {
+                    synonyms[i] = pool.intern(synonyms[i]);
+                }
+            }
+            this.itSynonyms = Arrays.asList(synonyms);
+        } else {
+            this.itSynonyms = Collections.<String>emptyList();
         }
         this.itDefn = row[6];        // CDISC Definition
         this.itPrefTerm = row[7];    // NCI Preferred Term
     }
 
+    /**
+     * Term constructor that takes the term values, used to create Term views of stored terms
+     * @param code the term C-code
+     * @param subVal the CDISC submission value
+     * @param synonyms the CDISC synonyms
+     * @param defn the CDISC definition
+     * @param prefTerm the NCI preferred term
+     */
+    Term(String code, String subVal, List<String> synonyms, String defn, String prefTerm) {
+        this.itCode = code;
+        this.itSubVal = subVal;
+        this.itSynonyms = synonyms;
+        this.itDefn = defn;
+        this.itPrefTerm = prefTerm;
+    }
+
     /**
      * generateEnumeratedItem takes a Term object and returns an EnumeratedItem element 
      * @param t Term a Term object used to create the EnumeratedItem content
      * @return it element returns an EnumeratedItem element
      */
     public Element generateEnumeratedItem(Term t) {
-        Element it = new Element("EnumeratedItem", this.ns.getOdmNamespace());
+        Element it = new Element("EnumeratedItem", NS.getOdmNamespace());
         it.setAttribute(new Attribute("CodedValue", this.itSubVal));
-        it.setAttribute(new Attribute("ExtCodeID", this.itCode, this.ns.getNciNamespace()));
+        it.setAttribute(new Attribute("ExtCodeID", this.itCode, NS.getNciNamespace()));
         for (String s : this.itSynonyms) {
             it.addContent(generateSynonym(s));
         }
@@ -66,22 +101,112 @@ class Term {
 
     /* takes a synonym string and returns a synonym element */
     private Element generateSynonym(String synonym) {
-        Element cdiscSynonym = new Element("CDISCSynonym", this.ns.getNciNamespace());
+        Element cdiscSynonym = new Element("CDISCSynonym", NS.getNciNamespace());
         cdiscSynonym.addContent(synonym);
         return cdiscSynonym;
     }
 
     /* returns the preferred term element created using an object property */
     private Element generatePrefTerm() {
-        Element cdiscPrefTerm = new Element("PreferredTerm", this.ns.getNciNamespace());
+        Element cdiscPrefTerm = new Element("PreferredTerm", NS.getNciNamespace());
         cdiscPrefTerm.addContent(this.itPrefTerm);
         return cdiscPrefTerm;
     }
 
     /* returns the cdisc definition element created using an object property */
     private Element generateCdiscDefn() {
-        Element cdiscDefn = new Element("CDISCDefinition", this.ns.getNciNamespace());
+        Element cdiscDefn = new Element("CDISCDefinition", NS.getNciNamespace());
         cdiscDefn.addContent(this.itDefn);
         return cdiscDefn;
     }
+
+    /**
+     * Returns the NCI C-code of the term
+     * @return itCode the term C-code
+     */
+    public String getCode() {
+        return this.itCode;
+    }
+
+    /**
+     * Returns the CDISC submission value of the term
+     * @return itSubVal the term submission value
+     */
+    public String getSubmissionValue() {
+        return this.itSubVal;
+    }
+
+    /**
+     * Returns the CDISC definition of the term
+     * @return itDefn the term definition
+     */
+    public String getDefinition() {
+        return this.itDefn;
+    }
+
+    /**
+     * Returns the NCI preferred term of the term
+     * @return itPrefTerm the term preferred term
+     */
+    public String getPreferredTerm() {
+        return this.itPrefTerm;
+    }
+
+    /**
+     * Returns the CDISC synonyms of the term
+     * @return itSynonyms the list of synonyms
+     */
+    public List<String> getSynonyms() {
+        return Collections.unmodifiableList(this.itSynonyms);
+    }
+
+    /**
+     * Returns the term as a row of the CT delimited text file
+     * @param cl the code list the term belongs to
+     * @return a String array containing the term row
+     */
+    public String[] toRow(Codelist cl) {
+        StringBuilder synonyms = new StringBuilder();
+        for (int i = 0; i < this.itSynonyms.size(); i++) {
+            synonyms.append(i == 0 ? "" : ";").append(this.itSynonyms.get(i));
+        }
+        return new String[] {this.itCode, cl.getCode(), "", cl.getName(), this.itSubVal,
+            synonyms.toString(), this.itDefn, this.itPrefTerm};
+    }
+
+    /**
+     * Returns a hash of the term fields used to detect changes between CT packages
+     * @return the 64-bit content hash
+     */
+    public long contentHash() {
+        ContentHash hash = new ContentHash().add(this.itSubVal);
+        for (String s : this.itSynonyms) {
+            hash.add(s);
+        }
+        return hash.add(this.itDefn).add(this.itPrefTerm).value();
+    }
+
+    /**
+     * writeEnumeratedItem writes the EnumeratedItem element for this Term to a stream
+     * @param w XMLStreamWriter the EnumeratedItem content is written to
+     * @throws XMLStreamException if the content cannot be written
+     */
+    public void writeEnumeratedItem(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartElement(NS.getOdmNamespace().getPrefix(), "EnumeratedItem", NS.getOdmNamespace().getURI());
+        w.writeAttribute("CodedValue", this.itSubVal);
+        w.writeAttribute(NS.getNciNamespace().getPrefix(), NS.getNciNamespace().getURI(), "ExtCodeID", this.itCode);
+        for (String s : this.itSynonyms) {
+            writeNciElement(w, "CDISCSynonym", s);
+        }
+        writeNciElement(w, "CDISCDefinition", this.itDefn);
+        writeNciElement(w, "PreferredTerm", this.itPrefTerm);
+        w.writeEndElement();
+    }
+
+    /* writes a text-only element in the nciodm namespace */
+    private void writeNciElement(XMLStreamWriter w, String name, String text) throws XMLStreamException {
+        w.writeStartElement(NS.getNciNamespace().getPrefix(), name, NS.getNciNamespace().getURI());
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
 }
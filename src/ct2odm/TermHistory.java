@@ -0,0 +1,408 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * TermHistory holds many packages of a standard in one deduplicated model. Each distinct
+ * version of a code list, of a term within its code list, and of the term order of a code
+ * list is stored once with a BitSet of the packages that contain it, so a term unchanged
+ * over forty quarters is held as one Term object and forty bits. Versions are matched by
+ * content hash and then by their fields, and the strings of all packages share one string
+ * pool. A term C-code repeated within a code list is stored as one slot per occurrence,
+ * so the second occurrence in one package is matched with the second in another. Any
+ * package can be rebuilt as a code list map for the existing ODM output, and C-code
+ * queries read the version bitsets without rebuilding any package. Packages are
+ * added from a single thread; the queries may be shared by any number of threads once
+ * all packages are added.
+ * @author Sam Hume swhume@gmail.com
+ */
+public final class TermHistory {
+    private final List<String> dates = new ArrayList<>();
+    private final TreeMap<String, Integer> packages = new TreeMap<>();
+    private final TreeMap<String, CodelistHistory> codelists = new TreeMap<>();
+    private final Map<String, List<TermSlot>> byTermCode = new HashMap<>();
+    private final StringPool pool = new StringPool();
+    private long rowCount = 0;
+    private long versionCount = 0;
+
+    /**
+     * Adds a package to the history
+     * @param pkgDate the package date in YYYY-MM-DD format
+     * @param pkg the code lists of the package keyed by C-code
+     * @throws IllegalArgumentException if a package with the date is already in the history
+     */
+    public void add(String pkgDate, Map<String, Codelist> pkg) {
+        if (this.packages.containsKey(pkgDate)) {
+            throw new IllegalArgumentException("The package is already in the history: " + pkgDate);
+        }
+        int p = this.dates.size();
+        this.dates.add(pkgDate);
+        this.packages.put(pkgDate, p);
+        for (Codelist cl : pkg.values()) {
+            CodelistHistory h = this.codelists.get(cl.getCode());
+            if (h == null) {
+                h = new CodelistHistory(this.pool.intern(cl.getCode()));
+                this.codelists.put(h.clCode, h);
+            }
+            h.add(cl, p);
+            this.rowCount += 1 + cl.getTermCount();
+        }
+    }
+
+    /**
+     * Returns the package dates in the history
+     * @return the package dates in date order
+     */
+    public List<String> getDates() {
+        return Collections.unmodifiableList(new ArrayList<>(this.packages.keySet()));
+    }
+
+    /**
+     * Rebuilds a package from the history. The code lists are new objects, but their terms
+     * are the Term objects shared by every package containing them.
+     * @param pkgDate the package date
+     * @return the code lists of the package keyed by C-code, or null if the package is not in the history
+     */
+    public TreeMap<String, Codelist> getPackage(String pkgDate) {
+        Integer p = this.packages.get(pkgDate);
+        if (p == null) {
+            return null;
+        }
+        TreeMap<String, Codelist> pkg = new TreeMap<>();
+        for (CodelistHistory h : this.codelists.values()) {
+            Version<Codelist> header = find(h.headers, p);
+            if (header == null) {
+                continue;
+            }
+            Codelist cl = new Codelist(header.value.toRow());
+            for (int slot : find(h.orders, p).value) {
+                cl.AddTerm(find(h.terms.get(slot), p).value);
+            }
+            pkg.put(h.clCode, cl);
+        }
+        return pkg;
+    }
+
+    /**
+     * Returns the packages that contain a C-code as a code list or as a term of any code list
+     * @param code the code list or term C-code
+     * @return the package dates in date order, empty if no package contains the C-code
+     */
+    public List<String> findPackages(String code) {
+        BitSet found = new BitSet();
+        CodelistHistory h = this.codelists.get(code);
+        if (h != null) {
+            for (Version<Codelist> v : h.headers) {
+                found.or(v.packages);
+            }
+        }
+        for (TermSlot s : termSlots(code)) {
+            for (Version<Term> v : s.history.terms.get(s.slot)) {
+                found.or(v.packages);
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : this.packages.entrySet()) {
+            if (found.get(e.getValue())) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns each package in which the definition of a code list or term differs from its
+     * definition in the previous package containing it, starting with its first package.
+     * A term C-code used in several code lists, or repeated within a code list, has changes
+     * listed for each code list and occurrence.
+     * @param code the code list or term C-code
+     * @return the definition changes in code list and date order, empty if no package contains the C-code
+     */
+    public List<Change> getDefinitionChanges(String code) {
+        List<Change> changes = new ArrayList<>();
+        CodelistHistory h = this.codelists.get(code);
+        if (h != null) {
+            Version<Codelist> prev = null;
+            for (Map.Entry<String, Integer> e : this.packages.entrySet()) {
+                Version<Codelist> v = find(h.headers, e.getValue());
+                if (v != null && (prev == null || !equal(prev.value.getDefinition(), v.value.getDefinition()))) {
+                    changes.add(new Change(e.getKey(), code, null, v.value.getDefinition(), prev == null ? null : prev.value.getDefinition()));
+                    prev = v;
+                }
+            }
+        }
+        for (TermSlot s : termSlots(code)) {
+            List<Version<Term>> versions = s.history.terms.get(s.slot);
+            Version<Term> prev = null;
+            for (Map.Entry<String, Integer> e : this.packages.entrySet()) {
+                Version<Term> v = find(versions, e.getValue());
+                if (v != null && (prev == null || !equal(prev.value.getDefinition(), v.value.getDefinition()))) {
+                    changes.add(new Change(e.getKey(), s.history.clCode, code, v.value.getDefinition(), prev == null ? null : prev.value.getDefinition()));
+                    prev = v;
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Returns the number of packages in the history
+     * @return the package count
+     */
+    public int getPackageCount() {
+        return this.dates.size();
+    }
+
+    /**
+     * Returns the number of code list and term rows in all the packages added
+     * @return the row count
+     */
+    public long getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * Returns the number of distinct code list and term versions stored
+     * @return the version count
+     */
+    public long getVersionCount() {
+        return this.versionCount;
+    }
+
+    /* returns the slots of every occurrence of a term C-code, in code list and occurrence order */
+    private List<TermSlot> termSlots(String code) {
+        List<TermSlot> slots = this.byTermCode.get(code);
+        return slots == null ? Collections.<TermSlot>emptyList() : slots;
+    }
+
+    /* returns the version contained in a package, or null if no version is */
+    private static <T> Version<T> find(List<Version<T>> versions, int p) {
+        for (Version<T> v : versions) {
+            if (v.packages.get(p)) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /* tests if two terms have the same fields */
+    private static boolean sameTerm(Term a, Term b) {
+        return a.getCode().equals(b.getCode()) && equal(a.getSubmissionValue(), b.getSubmissionValue())
+                && a.getSynonyms().equals(b.getSynonyms()) && equal(a.getDefinition(), b.getDefinition())
+                && equal(a.getPreferredTerm(), b.getPreferredTerm());
+    }
+
+    /* tests if two values are equal or both null */
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /* the versions of one code list: its header fields, its terms by C-code and occurrence, and its term order */
+    private final class CodelistHistory {
+        private final String clCode;
+        private final List<Version<Codelist>> headers = new ArrayList<>(2);
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final List<List<Version<Term>>> terms = new ArrayList<>();
+        private final List<Version<int[]>> orders = new ArrayList<>(2);
+
+        private CodelistHistory(String clCode) {
+            this.clCode = clCode;
+        }
+
+        /* records the code list of package p, adding the versions not stored yet */
+        private void add(Codelist cl, int p) {
+            long hash = cl.contentHash();
+            Version<Codelist> header = null;
+            for (Version<Codelist> v : this.headers) {
+                if (v.hash == hash && Arrays.equals(v.value.toRow(), cl.toRow())) {
+                    header = v;
+                    break;
+                }
+            }
+            if (header == null) {
+                String[] row = cl.toRow();
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = TermHistory.this.pool.intern(row[i]);
+                }
+                header = newVersion(this.headers, new Codelist(row), hash);
+            }
+            header.packages.set(p);
+            int[] order = new int[cl.getTermCount()];
+            Map<String, Integer> occurrences = new HashMap<>();
+            int n = 0;
+            for (Term t : cl.getTerms()) {
+                Integer occurrence = occurrences.get(t.getCode());
+                occurrence = occurrence == null ? 0 : occurrence + 1;
+                occurrences.put(t.getCode(), occurrence);
+                int slot = slot(t.getCode(), occurrence);
+                addTerm(this.terms.get(slot), t, p);
+                order[n++] = slot;
+            }
+            long orderHash = Arrays.hashCode(order);
+            Version<int[]> ordering = null;
+            for (Version<int[]> v : this.orders) {
+                if (v.hash == orderHash && Arrays.equals(v.value, order)) {
+                    ordering = v;
+                    break;
+                }
+            }
+            if (ordering == null) {
+                ordering = new Version<>(order, orderHash);
+                this.orders.add(ordering);
+            }
+            ordering.packages.set(p);
+        }
+
+        /* records a term of package p, storing a pooled copy when its version is not stored yet */
+        private void addTerm(List<Version<Term>> versions, Term t, int p) {
+            long hash = t.contentHash();
+            for (Version<Term> v : versions) {
+                if (v.hash == hash && sameTerm(v.value, t)) {
+                    v.packages.set(p);
+                    return;
+                }
+            }
+            StringPool sp = TermHistory.this.pool;
+            List<String> synonyms = t.getSynonyms().isEmpty() ? Collections.<String>emptyList() : new ArrayList<String>(t.getSynonyms().size());
+            for (String s : t.getSynonyms()) {
+                synonyms.add(sp.intern(s));
+            }
+            Term copy = new Term(sp.intern(t.getCode()), sp.intern(t.getSubmissionValue()), synonyms,
+                    sp.intern(t.getDefinition()), sp.intern(t.getPreferredTerm()));
+            newVersion(versions, copy, hash).packages.set(p);
+        }
+
+        /* returns the slot of an occurrence of a term C-code in the code list, creating it on first use */
+        private int slot(String code, int occurrence) {
+            String key = code + "\t" + occurrence;
+            Integer slot = this.slots.get(key);
+            if (slot == null) {
+                slot = this.terms.size();
+                this.slots.put(key, slot);
+                this.terms.add(new ArrayList<Version<Term>>(1));
+                List<TermSlot> termSlots = TermHistory.this.byTermCode.get(code);
+                if (termSlots == null) {
+                    termSlots = new ArrayList<>(1);
+                    TermHistory.this.byTermCode.put(TermHistory.this.pool.intern(code), termSlots);
+                }
+                termSlots.add(new TermSlot(this, slot, occurrence));
+                Collections.sort(termSlots, new Comparator<TermSlot>() {
+                    @Override
+                    public int compare(TermSlot a, TermSlot b) {
+                        int c = a.history.clCode.compareTo(b.history.clCode);
+                        return c != 0 ? c : Integer.compare(a.occurrence, b.occurrence);
+                    }
+                });
+            }
+            return slot;
+        }
+
+        /* adds a new code list or term version */
+        private <T> Version<T> newVersion(List<Version<T>> versions, T value, long hash) {
+            Version<T> v = new Version<>(value, hash);
+            versions.add(v);
+            TermHistory.this.versionCount++;
+            return v;
+        }
+    }
+
+    /* the slot of one occurrence of a term C-code within a code list */
+    private static final class TermSlot {
+        private final CodelistHistory history;
+        private final int slot;
+        private final int occurrence;
+
+        private TermSlot(CodelistHistory history, int slot, int occurrence) {
+            this.history = history;
+            this.slot = slot;
+            this.occurrence = occurrence;
+        }
+    }
+
+    /* one distinct version and the packages that contain it */
+    private static final class Version<T> {
+        private final T value;
+        private final long hash;
+        private final BitSet packages = new BitSet();
+
+        private Version(T value, long hash) {
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Change is a package in which the definition of a code list or term changed
+     */
+    public static final class Change {
+        private final String pkgDate;
+        private final String clCode;
+        private final String itCode;
+        private final String definition;
+        private final String previousDefinition;
+
+        Change(String pkgDate, String clCode, String itCode, String definition, String previousDefinition) {
+            this.pkgDate = pkgDate;
+            this.clCode = clCode;
+            this.itCode = itCode;
+            this.definition = definition;
+            this.previousDefinition = previousDefinition;
+        }
+
+        public String getPackageDate() {
+            return this.pkgDate;
+        }
+
+        public String getCodelistCode() {
+            return this.clCode;
+        }
+
+        /**
+         * Returns the term C-code
+         * @return the term C-code, or null for a change to the code list itself
+         */
+        public String getTermCode() {
+            return this.itCode;
+        }
+
+        public String getDefinition() {
+            return this.definition;
+        }
+
+        /**
+         * Returns the definition in the previous package containing the code list or term
+         * @return the previous definition, or null for the first package containing the code list or term
+         */
+        public String getPreviousDefinition() {
+            return this.previousDefinition;
+        }
+
+        @Override
+        public String toString() {
+            return this.pkgDate + "\t" + this.clCode + "\t" + (this.itCode == null ? "" : this.itCode) + "\t" + this.definition;
+        }
+    }
+}
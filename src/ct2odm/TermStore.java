@@ -0,0 +1,217 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TermStore holds the terms of a CT package in primitive columns instead of one Term
+ * object per row. C-codes are stored as ints, text fields as offsets into a shared
+ * UTF-8 byte arena in which each distinct value is stored once, and synonyms as ranges
+ * of arena offsets. Terms are read back as short-lived Term views.
+ * @author Sam Hume swhume@gmail.com
+ */
+final class TermStore {
+    private static final int NO_CODE = -1;
+    private int size = 0;
+    private int[] codes = new int[1024];
+    private int[] subVals = new int[1024];
+    private int[] defns = new int[1024];
+    private int[] prefTerms = new int[1024];
+    private int[] synStarts = new int[1025];
+    private int[] synOffsets = new int[1024];
+    private int synCount = 0;
+    private byte[] arena = new byte[16384];
+    private int arenaSize = 0;
+    private final Map<Integer, String> irregularCodes = new HashMap<>();
+    private Map<String, Integer> offsets = new HashMap<>();
+
+    /**
+     * Adds a term row from the CT delimited text file to the store
+     * @param row a String array containing the term row of delimited text file CT
+     * @return the index of the term in the store
+     */
+    public int add(String[] row) {
+        if (this.size == this.codes.length) {
+            int n = Math.max(1024, this.size * 2);
+            this.codes = Arrays.copyOf(this.codes, n);
+            this.subVals = Arrays.copyOf(this.subVals, n);
+            this.defns = Arrays.copyOf(this.defns, n);
+            this.prefTerms = Arrays.copyOf(this.prefTerms, n);
+            this.synStarts = Arrays.copyOf(this.synStarts, n + 1);
+        }
+        int i = this.size;
+        this.codes[i] = parseCode(row[0]);
+        if (this.codes[i] == NO_CODE) {
+            this.irregularCodes.put(i, row[0]);
+        }
+        this.subVals[i] = store(row[4]);
+        this.synStarts[i] = this.synCount;
+        String synonyms = row[5];
+        if (synonyms != null) {
+            // trailing empty synonyms are dropped, as done by String.split
+            int limit = synonyms.length();
+            while (limit > 0 && synonyms.charAt(limit - 1) == ';') {
+                limit--;
+            }
+            int start = 0;
+            while (start < limit) {
+                int end = synonyms.indexOf(';', start);
+                if (end < 0 || end > limit) {
+                    end = limit;
+                }
+                addSynonym(synonyms.substring(start, end));
+                start = end + 1;
+            }
+        }
+        this.defns[i] = store(row[6]);
+        this.prefTerms[i] = store(row[7]);
+        this.size++;
+        this.synStarts[this.size] = this.synCount;
+        return i;
+    }
+
+    /**
+     * Returns a Term view of a stored term
+     * @param index the index of the term in the store
+     * @return a Term with the stored values
+     */
+    public Term term(int index) {
+        int synStart = this.synStarts[index];
+        int synEnd = this.synStarts[index + 1];
+        List<String> synonyms;
+        if (synStart == synEnd) {
+            synonyms = Collections.emptyList();
+        } else {
+            synonyms = new ArrayList<>(synEnd - synStart);
+            for (int s = synStart; s < synEnd; s++) {
+                synonyms.add(read(this.synOffsets[s]));
+            }
+        }
+        return new Term(code(index), read(this.subVals[index]), synonyms, read(this.defns[index]), read(this.prefTerms[index]));
+    }
+
+    /**
+     * Returns the C-code of a stored term
+     * @param index the index of the term in the store
+     * @return the term C-code
+     */
+    public String code(int index) {
+        int code = this.codes[index];
+        return code == NO_CODE ? this.irregularCodes.get(index) : "C" + code;
+    }
+
+    /**
+     * Returns the number of terms in the store
+     * @return the term count
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of bytes used by the text arena
+     * @return the arena size in bytes
+     */
+    public int arenaSize() {
+        return this.arenaSize;
+    }
+
+    /**
+     * Releases the spare column capacity and the map used to store each distinct value
+     * once. Terms added after trim are still stored but no longer share existing values.
+     */
+    public void trim() {
+        this.codes = Arrays.copyOf(this.codes, this.size);
+        this.subVals = Arrays.copyOf(this.subVals, this.size);
+        this.defns = Arrays.copyOf(this.defns, this.size);
+        this.prefTerms = Arrays.copyOf(this.prefTerms, this.size);
+        this.synStarts = Arrays.copyOf(this.synStarts, this.size + 1);
+        this.synOffsets = Arrays.copyOf(this.synOffsets, this.synCount);
+        this.arena = Arrays.copyOf(this.arena, this.arenaSize);
+        this.offsets = new HashMap<>();
+    }
+
+    /* parses a C-code such as C12345 into 12345, or returns NO_CODE for any other form */
+    private static int parseCode(String code) {
+        int len = code.length();
+        if (len < 2 || len > 10 || code.charAt(0) != 'C' || code.charAt(1) == '0') {
+            return NO_CODE;
+        }
+        long n = 0;
+        for (int i = 1; i < len; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_CODE;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n > Integer.MAX_VALUE ? NO_CODE : (int) n;
+    }
+
+    /* appends a synonym to the synonym column */
+    private void addSynonym(String synonym) {
+        if (this.synCount == this.synOffsets.length) {
+            this.synOffsets = Arrays.copyOf(this.synOffsets, Math.max(1024, this.synCount * 2));
+        }
+        this.synOffsets[this.synCount++] = store(synonym);
+    }
+
+    /* stores a value in the arena as a varint length followed by its UTF-8 bytes and returns its offset */
+    private int store(String value) {
+        if (value == null) {
+            value = "";
+        }
+        Integer existing = this.offsets.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int offset = this.arenaSize;
+        if (this.arenaSize + bytes.length + 5 > this.arena.length) {
+            this.arena = Arrays.copyOf(this.arena, Math.max(this.arena.length * 2, this.arenaSize + bytes.length + 5));
+        }
+        int len = bytes.length;
+        while (len >= 0x80) {
+            this.arena[this.arenaSize++] = (byte) (len | 0x80);
+            len >>>= 7;
+        }
+        this.arena[this.arenaSize++] = (byte) len;
+        System.arraycopy(bytes, 0, this.arena, this.arenaSize, bytes.length);
+        this.arenaSize += bytes.length;
+        this.offsets.put(value, offset);
+        return offset;
+    }
+
+    /* reads the value stored at an arena offset */
+    private String read(int offset) {
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = this.arena[offset++];
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return len == 0 ? "" : new String(this.arena, offset, len, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,409 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.Attributes;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * ValidatingWriter writes the CT-XML characters to a target Writer and hands the same
+ * characters, in fixed-size chunks through a bounded queue, to a thread that parses them
+ * and validates them against an XML schema with a JAXP ValidatorHandler. The file is
+ * validated while it is generated instead of being read a second time. Each schema error
+ * is reported with the OID of the CodeList element it occurs in. The schema is loaded
+ * from local files only: schema documents may only be read from the file system, DTDs
+ * are not loaded, and the generated document may not reference any external resource.
+ * close waits for the validation to finish; the errors are then available from getErrors.
+ * @author Sam Hume swhume@gmail.com
+ */
+class ValidatingWriter extends Writer {
+    private static final int MAX_ERRORS = 100;
+    private static final Chunk END = new Chunk(0);
+    private static final String ODM_URI = XMLNamespace.getInstance().getOdmNamespace().getURI();
+    private final Writer target;
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<Chunk> free;
+    private final Thread thread;
+    private final List<String> errors = new ArrayList<>();
+    private long errorCount = 0;
+    private String codelistOid;
+    private Chunk current;
+    private boolean closed = false;
+
+    /**
+     * ValidatingWriter constructor starts the validation thread
+     * @param target the Writer the CT-XML file is written to
+     * @param schema the compiled CT-XML schema
+     * @param chunkSize the number of characters handed to the validation thread at a time
+     * @param queueSize the number of chunks that may wait for the validation thread
+     */
+    public ValidatingWriter(Writer target, final Schema schema, int chunkSize, int queueSize) {
+        this.target = target;
+        this.filled = new ArrayBlockingQueue<>(queueSize + 1);
+        this.free = new ArrayBlockingQueue<>(queueSize + 1);
+        for (int i = 0; i < queueSize; i++) {
+            this.free.add(new Chunk(chunkSize));
+        }
+        this.current = new Chunk(chunkSize);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                validate(schema);
+            }
+        }, "ct2odm-validator");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Compiles an XML schema from local files, refusing network access for the schema
+     * documents it includes or imports
+     * @param fileName path and file name of the schema (e.g. the CT-XML 1.1.1 schema that imports ODM 1.3.2)
+     * @return the compiled schema, which is thread-safe and may be shared by conversions
+     * @throws IOException if the schema cannot be read or is not valid
+     */
+    static Schema loadSchema(String fileName) throws IOException {
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        try {
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "file");
+            factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        } catch (SAXException ex) {
+            // a schema factory without these properties still compiles the schema
+        }
+        factory.setResourceResolver(new LocalResolver());
+        try {
+            return factory.newSchema(new File(fileName));
+        } catch (SAXException ex) {
+            throw new IOException("Unable to load the schema " + fileName + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, this.current.buf.length - this.current.len);
+            System.arraycopy(cbuf, off, this.current.buf, this.current.len, n);
+            this.current.len += n;
+            off += n;
+            len -= n;
+            if (this.current.len == this.current.buf.length) {
+                handOff();
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, this.current.buf.length - this.current.len);
+            str.getChars(off, off + n, this.current.buf, this.current.len);
+            this.current.len += n;
+            off += n;
+            len -= n;
+            if (this.current.len == this.current.buf.length) {
+                handOff();
+            }
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        write(new char[] {(char) c}, 0, 1);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (this.current.len > 0) {
+            handOff();
+        }
+        this.target.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            if (this.current.len > 0) {
+                this.target.write(this.current.buf, 0, this.current.len);
+            }
+            this.target.close();
+        } finally {
+            this.closed = true;
+            try {
+                if (this.current.len > 0) {
+                    this.filled.put(this.current);
+                }
+                this.filled.put(END);
+                this.thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while validating the output file");
+            }
+        }
+    }
+
+    /**
+     * Returns the schema errors found, each with its CodeList OID, line, and column
+     * @return the first MAX_ERRORS errors, available once the writer is closed
+     */
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(this.errors);
+    }
+
+    /**
+     * Returns the number of schema errors found
+     * @return the error count, available once the writer is closed
+     */
+    public long getErrorCount() {
+        return this.errorCount;
+    }
+
+    /* writes the current chunk to the target, hands it to the validation thread, and takes a free chunk to fill next */
+    private void handOff() throws IOException {
+        this.target.write(this.current.buf, 0, this.current.len);
+        try {
+            this.filled.put(this.current);
+            this.current = this.free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while validating the output file");
+        }
+    }
+
+    /* throws if the writer is closed */
+    private void ensureOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("The output writer is closed");
+        }
+    }
+
+    /* validation thread: parses the chunks as they are written and validates them until the end marker */
+    private void validate(Schema schema) {
+        ChunkReader in = new ChunkReader();
+        try {
+            SAXParserFactory spf = SAXParserFactory.newInstance();
+            spf.setNamespaceAware(true);
+            spf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            ValidatorHandler validator = schema.newValidatorHandler();
+            ErrorHandler errorHandler = new Errors();
+            validator.setErrorHandler(errorHandler);
+            CodelistFilter filter = new CodelistFilter();
+            filter.setParent(spf.newSAXParser().getXMLReader());
+            filter.setContentHandler(validator);
+            filter.setErrorHandler(errorHandler);
+            filter.parse(new InputSource(in));
+        } catch (SAXParseException ex) {
+            // a fatal error is recorded by the error handler
+        } catch (SAXException | ParserConfigurationException | IOException ex) {
+            addError("validation stopped: " + ex.getMessage());
+        } finally {
+            // the remaining chunks are still returned so the writing thread never blocks
+            in.drain();
+        }
+    }
+
+    /* records a schema error with the CodeList OID it occurs in */
+    private void addError(String message) {
+        this.errorCount++;
+        if (this.errors.size() < MAX_ERRORS) {
+            this.errors.add((this.codelistOid == null ? "" : "CodeList " + this.codelistOid + " ") + message);
+        }
+    }
+
+    /* records the errors reported by the parser and validator; a fatal error stops validation */
+    private final class Errors implements ErrorHandler {
+        @Override
+        public void warning(SAXParseException ex) {
+        }
+
+        @Override
+        public void error(SAXParseException ex) {
+            addError("line " + ex.getLineNumber() + " column " + ex.getColumnNumber() + ": " + ex.getMessage());
+        }
+
+        @Override
+        public void fatalError(SAXParseException ex) throws SAXException {
+            addError("line " + ex.getLineNumber() + " column " + ex.getColumnNumber() + ": " + ex.getMessage());
+            throw ex;
+        }
+    }
+
+    /* passes the parse events on to the validator, noting the OID of the CodeList element before it is validated */
+    private final class CodelistFilter extends XMLFilterImpl {
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if ("CodeList".equals(localName) && ODM_URI.equals(uri)) {
+                ValidatingWriter.this.codelistOid = atts.getValue("OID");
+            }
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            super.endElement(uri, localName, qName);
+            if ("CodeList".equals(localName) && ODM_URI.equals(uri)) {
+                ValidatingWriter.this.codelistOid = null;
+            }
+        }
+    }
+
+    /* reads the chunks handed to the validation thread, returning each one to the writing thread once read */
+    private final class ChunkReader extends Reader {
+        private Chunk chunk;
+        private int pos = 0;
+        private boolean ended = false;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            while (!this.ended && (this.chunk == null || this.pos == this.chunk.len)) {
+                next();
+            }
+            if (this.ended) {
+                return -1;
+            }
+            int n = Math.min(len, this.chunk.len - this.pos);
+            System.arraycopy(this.chunk.buf, this.pos, cbuf, off, n);
+            this.pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // the chunks are returned by drain
+        }
+
+        /* returns the current chunk and takes the next one, or notes the end marker */
+        private void next() throws InterruptedIOException {
+            release();
+            try {
+                Chunk c = ValidatingWriter.this.filled.take();
+                if (c == END) {
+                    this.ended = true;
+                } else {
+                    this.chunk = c;
+                    this.pos = 0;
+                }
+            } catch (InterruptedException ex) {
+                this.ended = true;
+                throw new InterruptedIOException("Interrupted while validating the output file");
+            }
+        }
+
+        /* returns the current chunk to the writing thread */
+        private void release() {
+            if (this.chunk != null) {
+                this.chunk.len = 0;
+                ValidatingWriter.this.free.add(this.chunk);
+                this.chunk = null;
+            }
+        }
+
+        /* discards the chunks not read by the parser up to the end marker */
+        private void drain() {
+            try {
+                while (!this.ended) {
+                    next();
+                }
+            } catch (InterruptedIOException ex) {
+                // the writing thread is interrupted as well
+            }
+            release();
+        }
+    }
+
+    /*
+     * resolves the DTDs declared by schema documents (e.g. the W3C XML Signature schema imported by ODM)
+     * to an empty DTD instead of reading them; schema documents are read from their local schemaLocation
+     */
+    private static final class LocalResolver implements LSResourceResolver {
+        private static final String XML_RESOURCE_TYPE = "http://www.w3.org/TR/REC-xml";
+
+        @Override
+        public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+            if (!XML_RESOURCE_TYPE.equals(type)) {
+                return null;
+            }
+            EmptyInput input = new EmptyInput();
+            input.publicId = publicId;
+            input.systemId = systemId;
+            input.baseURI = baseURI;
+            return input;
+        }
+    }
+
+    /* an LSInput with empty content */
+    private static final class EmptyInput implements LSInput {
+        private String publicId;
+        private String systemId;
+        private String baseURI;
+
+        @Override public Reader getCharacterStream() { return new StringReader(""); }
+        @Override public void setCharacterStream(Reader characterStream) { }
+        @Override public InputStream getByteStream() { return null; }
+        @Override public void setByteStream(InputStream byteStream) { }
+        @Override public String getStringData() { return ""; }
+        @Override public void setStringData(String stringData) { }
+        @Override public String getSystemId() { return this.systemId; }
+        @Override public void setSystemId(String systemId) { this.systemId = systemId; }
+        @Override public String getPublicId() { return this.publicId; }
+        @Override public void setPublicId(String publicId) { this.publicId = publicId; }
+        @Override public String getBaseURI() { return this.baseURI; }
+        @Override public void setBaseURI(String baseURI) { this.baseURI = baseURI; }
+        @Override public String getEncoding() { return null; }
+        @Override public void setEncoding(String encoding) { }
+        @Override public boolean getCertifiedText() { return false; }
+        @Override public void setCertifiedText(boolean certifiedText) { }
+    }
+
+    /* a block of characters handed to the validation thread */
+    private static final class Chunk {
+        private final char[] buf;
+        private int len = 0;
+
+        private Chunk(int size) {
+            this.buf = new char[size];
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+* Copyright 2017 Sam Hume.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package ct2odm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WatchDaemon watches an inbox directory for NCI EVS text files and converts each one
+ * in the same long-running JVM, so the classes stay loaded and the JIT compiled code is
+ * reused across packages. The standard and package date are taken from the file name as
+ * in batch mode. Conversions run on a fixed pool of worker threads fed through a bounded
+ * queue; when the queue is full the watcher waits for a free slot. Each CT-XML file is
+ * written to a temporary file in the output directory and renamed into place when it is
+ * complete, so readers of the output directory never see a partial file. A text file is
+ * converted once it has not changed for SETTLE_MILLIS, and converted again when it changes
+ * during its conversion. A JSON status file with the daemon state and job counts is
+ * rewritten after each change and at least every HEARTBEAT_SECONDS.
+ * @author Sam Hume swhume@gmail.com
+ */
+class WatchDaemon {
+    private static final int QUEUE_SIZE = 64;
+    private static final int HEARTBEAT_SECONDS = 10;
+    private static final long SETTLE_MILLIS = 250;
+    private static final long SETTLE_POLL_MILLIS = 25;
+    private static final String TEMP_PREFIX = ".ct2odm-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private final File inbox;
+    private final File outDir;
+    private final File statusFile;
+    private final String namePattern;
+    private final int threads;
+    private final CT2ODM options;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore slots;
+    // pending and changed are guarded by pending
+    private final Set<String> pending = new HashSet<>();
+    private final Set<String> changed = new HashSet<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong running = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final String startedAt = LocalDateTime.now().withNano(0).toString();
+    private volatile String state = "starting";
+    private volatile String lastJob = "null";
+    private WatchService watcher;
+
+    /**
+     * WatchDaemon constructor configures the inbox and the conversions
+     * @param inbox directory watched for NCI EVS text files
+     * @param outDir directory the CT-XML files are written to as std-odm-date.xml
+     * @param statusFile path and file name of the JSON status file, or null for none
+     * @param namePattern file name regex with std and date named groups, or null for the NCI default
+     * @param threads number of packages converted concurrently
+     * @param options the command line options each conversion uses
+     */
+    public WatchDaemon(String inbox, String outDir, String statusFile, String namePattern, int threads, CT2ODM options) {
+        this.inbox = new File(inbox);
+        this.outDir = new File(outDir);
+        this.statusFile = statusFile == null ? null : new File(statusFile);
+        this.namePattern = namePattern;
+        this.threads = threads;
+        this.options = options;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+        this.slots = new Semaphore(threads + QUEUE_SIZE);
+    }
+
+    /**
+     * Converts the text files already in the inbox, then each text file created or
+     * modified in the inbox until stop is called
+     * @throws IOException if the inbox cannot be watched
+     */
+    public void run() throws IOException {
+        try {
+            removeTempFiles();
+            this.watcher = FileSystems.getDefault().newWatchService();
+            this.inbox.toPath().register(this.watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            this.state = "running";
+            scanInbox();
+            writeStatus();
+            while (!"stopping".equals(this.state)) {
+                WatchKey key = this.watcher.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (key == null) {
+                    writeStatus();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scanInbox();
+                    } else {
+                        submit(this.inbox.toPath().resolve((Path) event.context()).toFile(), false);
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // stop closed the watch service
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stops watching the inbox, drops the queued conversions, and waits for the running
+     * conversions to finish
+     */
+    public void stop() {
+        this.state = "stopping";
+        try {
+            if (this.watcher != null) {
+                this.watcher.close();
+            }
+            this.stopped.await();
+        } catch (IOException ex) {
+            System.out.println("Unable to close the inbox watch service: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* drops the queued conversions, waits for the running ones, and records the final status */
+    private void shutdown() {
+        this.state = "stopping";
+        List<Runnable> dropped = new ArrayList<>();
+        this.pool.getQueue().drainTo(dropped);
+        this.queued.addAndGet(-dropped.size());
+        this.pool.shutdown();
+        try {
+            this.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.state = "stopped";
+        writeStatus();
+        this.stopped.countDown();
+    }
+
+    /* queues a conversion for each text file in the inbox whose CT-XML file is not up to date */
+    private void scanInbox() throws InterruptedException {
+        File[] files = this.inbox.listFiles();
+        if (files == null) {
+            System.out.println("Unable to list the inbox directory: " + this.inbox);
+            return;
+        }
+        Arrays.sort(files);
+        for (File txt : files) {
+            submit(txt, true);
+        }
+    }
+
+    /* queues the conversion of a text file; a file found by an inbox scan is skipped when its CT-XML file
+       is newer, while a created or modified file is always converted, as a file moved or copied into the
+       inbox keeps its older modification time. A text file that is already queued or converting is marked
+       as changed so it is converted again */
+    private void submit(File txt, boolean scan) throws InterruptedException {
+        final CT2ODM job = BatchConverter.jobForFile(txt, this.outDir.getPath(), this.namePattern, this.options);
+        if (job == null) {
+            return;
+        }
+        File odm = new File(job.getOdmFileName());
+        if (scan && odm.lastModified() >= txt.lastModified()) {
+            return;
+        }
+        synchronized (this.pending) {
+            if (!this.pending.add(txt.getPath())) {
+                this.changed.add(txt.getPath());
+                return;
+            }
+        }
+        this.slots.acquire();
+        this.queued.incrementAndGet();
+        this.pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    convert(job);
+                } finally {
+                    WatchDaemon.this.slots.release();
+                }
+            }
+        });
+        writeStatus();
+    }
+
+    /* worker thread: converts a text file, and converts it again while it changes during its conversion */
+    private void convert(CT2ODM job) {
+        this.queued.decrementAndGet();
+        this.running.incrementAndGet();
+        File txt = new File(job.getTxtFileName());
+        File odm = new File(job.getOdmFileName());
+        boolean again = true;
+        try {
+            while (again) {
+                long[] converted = convertOnce(job, txt, odm);
+                synchronized (this.pending) {
+                    again = !"stopping".equals(this.state) && !Thread.currentThread().isInterrupted()
+                            && (this.changed.remove(txt.getPath()) || txt.length() != converted[0] || txt.lastModified() != converted[1]);
+                    if (!again) {
+                        this.pending.remove(txt.getPath());
+                        this.changed.remove(txt.getPath());
+                    }
+                }
+                if (again) {
+                    System.out.println("CHANGED " + txt + " was modified during its conversion, converting it again");
+                }
+            }
+        } finally {
+            if (again) {
+                synchronized (this.pending) {
+                    this.pending.remove(txt.getPath());
+                    this.changed.remove(txt.getPath());
+                }
+            }
+            this.running.decrementAndGet();
+        }
+    }
+
+    /* waits for the text file to settle, converts it to a temporary file, and renames it into place,
+       returning the size and modification time of the text file that was converted */
+    private long[] convertOnce(CT2ODM job, File txt, File odm) {
+        String error = null;
+        BatchConverter.Result result = null;
+        long[] converted = {-1, -1};
+        try {
+            awaitSettled(txt);
+            synchronized (this.pending) {
+                // the changes seen so far are in the settled file
+                this.changed.remove(txt.getPath());
+            }
+            converted[0] = txt.length();
+            converted[1] = txt.lastModified();
+            File tmp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, this.outDir);
+            try {
+                job.setOdmFileName(tmp.getPath());
+                result = BatchConverter.convert(job);
+                error = result.getError();
+                if (error == null) {
+                    Files.move(tmp.toPath(), odm.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException ex) {
+            error = ex.getMessage() == null ? ex.toString() : ex.getMessage();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            error = "Interrupted";
+        }
+        long elapsedMillis = result == null ? 0 : result.getElapsedNanos() / 1000000;
+        if (error == null) {
+            this.completed.incrementAndGet();
+            System.out.println("OK      " + txt + " -> " + odm + " (" + result.getRows() + " rows, " + elapsedMillis + " ms)");
+        } else {
+            this.failed.incrementAndGet();
+            System.out.println("FAILED  " + txt + ": " + error);
+        }
+        this.lastJob = "{\"txt\": " + JsonUtil.quote(txt.getPath()) + ", \"odm\": " + JsonUtil.quote(odm.getPath())
+                + ", \"success\": " + (error == null) + ", \"error\": " + JsonUtil.quote(error)
+                + ", \"elapsedMillis\": " + elapsedMillis
+                + ", \"finishedAt\": " + JsonUtil.quote(LocalDateTime.now().withNano(0).toString()) + "}";
+        writeStatus();
+        return converted;
+    }
+
+    /* waits until a file being copied into the inbox has not changed for SETTLE_MILLIS, polling its size and
+       modification time every SETTLE_POLL_MILLIS; a file last modified earlier than that is not waited for */
+    private static void awaitSettled(File txt) throws InterruptedException {
+        long length = txt.length();
+        long modified = txt.lastModified();
+        long changedAt = 0;
+        while (System.currentTimeMillis() - Math.max(modified, changedAt) < SETTLE_MILLIS) {
+            Thread.sleep(SETTLE_POLL_MILLIS);
+            if (txt.length() != length || txt.lastModified() != modified) {
+                length = txt.length();
+                modified = txt.lastModified();
+                changedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /* deletes the temporary files left in the output directory by a daemon that was killed mid-conversion */
+    private void removeTempFiles() throws IOException {
+        File[] files = this.outDir.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list the ODM output directory: " + this.outDir);
+        }
+        for (File f : files) {
+            if (f.getName().startsWith(TEMP_PREFIX) && f.getName().endsWith(TEMP_SUFFIX)) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+    }
+
+    /* atomically replaces the JSON status file with the current state and job counts */
+    private synchronized void writeStatus() {
+        if (this.statusFile == null) {
+            return;
+        }
+        String json = "{\n"
+                + "  \"state\": " + JsonUtil.quote(this.state) + ",\n"
+                + "  \"inbox\": " + JsonUtil.quote(this.inbox.getPath()) + ",\n"
+                + "  \"outputDirectory\": " + JsonUtil.quote(this.outDir.getPath()) + ",\n"
+                + "  \"threads\": " + this.threads + ",\n"
+                + "  \"startedAt\": " + JsonUtil.quote(this.startedAt) + ",\n"
+                + "  \"updatedAt\": " + JsonUtil.quote(LocalDateTime.now().withNano(0).toString()) + ",\n"
+                + "  \"queued\": " + this.queued.get() + ",\n"
+                + "  \"running\": " + this.running.get() + ",\n"
+                + "  \"completed\": " + this.completed.get() + ",\n"
+                + "  \"failed\": " + this.failed.get() + ",\n"
+                + "  \"heapUsedBytes\": " + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) + ",\n"
+                + "  \"lastJob\": " + this.lastJob + "\n"
+                + "}\n";
+        Path target = this.statusFile.toPath();
+        Path tmp = target.resolveSibling(this.statusFile.getName() + TEMP_SUFFIX);
+        try {
+            Files.write(tmp, json.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.out.println("Unable to write the status file " + this.statusFile + ": " + ex.getMessage());
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.jdom2.Namespace;
  * @author Sam Hume swhume@gmail.com
  */
 public final class XMLNamespace {
+    private static final XMLNamespace INSTANCE = new XMLNamespace();
     private final Namespace nsNci;
     private final Namespace nsOdm;
     private final Namespace nsXsi;
@@ -34,6 +35,14 @@ public final class XMLNamespace {
         this.nsXsi = Namespace.getNamespace("xsi", "http://www.w3.org/2001/XMLSchema-instance");
     }
 
+    /**
+     * Returns the shared XMLNamespace instance used by the code lists and terms
+     * @return the shared XMLNamespace
+     */
+    public static XMLNamespace getInstance() {
+        return INSTANCE;
+    }
+
     public Namespace getNciNamespace() {
         return this.nsNci;
     } 